@@ -1,13 +1,39 @@
 import json
 from collections import defaultdict
 
-def parse_coverage_log_better(input_log_path, output_json_path):
+def load_probe_manifest(manifest_path):
+    # id -> (kind, file, line, index), as written by util.ProbeRegistry. An EXERCISED_INFERRED row
+    # (Main --probes=minimal) is never hit itself; its index is the probe whose hit implies it.
+    probes = {}
+    if manifest_path is None:
+        return probes
+    with open(manifest_path, 'r') as f:
+        for row in f:
+            row = row.rstrip("\n")
+            if not row or row.startswith("#"):
+                continue
+            parts = row.split("\t")
+            if len(parts) != 5:
+                continue
+            probes[parts[0]] = (parts[1], parts[2], parts[3], parts[4])
+    for kind, file, lineno, source in list(probes.values()):
+        if kind == "EXERCISED_INFERRED" and source in probes:
+            probes[source] = probes[source] + ((file, lineno),)
+    return probes
+
+def parse_coverage_log_better(input_log_path, output_json_path, manifest_path=None):
     with open(input_log_path, 'r') as f:
         lines = [line.strip() for line in f if line.strip()]
 
-    location_map = defaultdict(lambda: {"exercised": [], "subconditions": defaultdict(list)})
+    probes = load_probe_manifest(manifest_path)
+
+    location_map = defaultdict(lambda: {"exercised": [], "subconditions": defaultdict(list),
+                                        "exercised_hits": defaultdict(int),
+                                        "subcondition_hits": defaultdict(lambda: defaultdict(int))})
 
     current_test = None
+    # Logger writes a test's PROBE_COUNT lines (Main --hit-counts) when it flushes, after its END line
+    last_test = None
 
     for line in lines:
         if line.startswith("=== START TEST:"):
@@ -16,10 +42,36 @@ def parse_coverage_log_better(input_log_path, output_json_path):
             if start_idx != -1 and end_idx != -1:
                 full_test_id = line[start_idx + 1:end_idx]
                 current_test = full_test_id.split(":")[-1].strip()
+                last_test = current_test
         elif line.startswith("=== END TEST:"):
             current_test = None
+        elif line.startswith("{event: PROBE_COUNT,"):
+            probe = probes.get(extract_between(line, "id: ", ",").strip())
+            test = current_test or last_test
+            if probe is None or test is None:
+                continue
+            hits = int(extract_between(line, "count: ", "}").strip())
+            kind, file, lineno, index = probe[:4]
+            if kind == "EXERCISED":
+                location_map[f"{file}:{lineno}"]["exercised_hits"][test] += hits
+            elif kind == "SUBCONDITION_CHECKED":
+                location_map[f"{file}:{lineno}"]["subcondition_hits"][index][test] += hits
+            for inferred_file, inferred_line in probe[4:]:
+                location_map[f"{inferred_file}:{inferred_line}"]["exercised_hits"][test] += hits
         elif current_test is not None:
-            if '"event":"EXERCISED"' in line:
+            if line.startswith("{event: PROBE,"):
+                probe = probes.get(extract_between(line, "id: ", "}").strip())
+                if probe is None:
+                    continue
+                kind, file, lineno, index = probe[:4]
+                location = f"{file}:{lineno}"
+                if kind == "EXERCISED":
+                    location_map[location]["exercised"].append(current_test)
+                elif kind == "SUBCONDITION_CHECKED":
+                    location_map[location]["subconditions"][index].append(current_test)
+                for inferred_file, inferred_line in probe[4:]:
+                    location_map[f"{inferred_file}:{inferred_line}"]["exercised"].append(current_test)
+            elif '"event":"EXERCISED"' in line:
                 file = extract_between(line, '"file":"', '"')
                 lineno = extract_between(line, '"line":"', '"')
                 location = f"{file}:{lineno}"
@@ -35,15 +87,15 @@ def parse_coverage_log_better(input_log_path, output_json_path):
     final_map = {}
     for loc, data in location_map.items():
         final_map[loc] = {
-            "exercised": {
+            "exercised": with_hits({
                 "cnt": len(set(data["exercised"])),
                 "testcases": sorted(set(data["exercised"]))
-            },
+            }, data["exercised_hits"]),
             "subconditions": {
-                idx: {
+                idx: with_hits({
                     "cnt": len(set(tests)),
                     "testcases": sorted(set(tests))
-                }
+                }, data["subcondition_hits"].get(idx, {}))
                 for idx, tests in data["subconditions"].items()
             }
         }
@@ -51,6 +103,12 @@ def parse_coverage_log_better(input_log_path, output_json_path):
     with open(output_json_path, "w") as f:
         json.dump(final_map, f, indent=2)
 
+def with_hits(entry, hits):
+    # Per-test hit counts, only in logs written with hit counts
+    if hits:
+        entry["hits"] = {test: hits[test] for test in sorted(hits)}
+    return entry
+
 def extract_between(text, start_token, end_token):
     start_idx = text.find(start_token)
     if start_idx == -1:
@@ -63,8 +121,9 @@ def extract_between(text, start_token, end_token):
 
 def main():
     input_log = "/Users/yzhou29/git/trace/joda_time-2.10.3/coverage.log"
+    probe_manifest = "/Users/yzhou29/git/trace/joda_time-2.10.3/probes.manifest"
     output_json = "location_based_coverage_final.json"
-    parse_coverage_log_better(input_log, output_json)
+    parse_coverage_log_better(input_log, output_json, probe_manifest)
 
 if __name__ == "__main__":
     main()
\ No newline at end of file
@@ -9,7 +9,7 @@ fi
 
 # Define the target project from input argument
 PROJ=$1
-LOGGER_CLASS="../soot-instrument/target/classes/Logger.class"
+LOGGER_DIR="../soot-instrument/target/classes"
 
 echo "🔎 Scanning modules under: $PROJ"
 
@@ -52,16 +52,18 @@ find "$PROJ" -mindepth 1 -maxdepth 1 -type d | while read -r MODULE_DIR; do
   copy_matching_classes "$SRC_CLASSES" "$DST_CLASSES"
   copy_matching_classes "$SRC_TEST_CLASSES" "$DST_TEST_CLASSES"
 
-  # ✅ Ensure Logger.class is copied to each module's classes
-  if [ -f "$LOGGER_CLASS" ]; then
+  # ✅ Ensure Logger.class (and its nested Logger$*.class) is copied to each module's classes
+  if [ -f "$LOGGER_DIR/Logger.class" ]; then
     if [ -d "$DST_CLASSES" ]; then
-      echo "→ Copying Logger.class to $DST_CLASSES"
-      cp "$LOGGER_CLASS" "$DST_CLASSES/"
+      echo "→ Copying Logger classes to $DST_CLASSES"
+      cp "$LOGGER_DIR"/Logger*.class "$DST_CLASSES/"
+      # JUnit listeners for Main --tests=listener
+      cp "$LOGGER_DIR"/Coverage*Listener.class "$DST_CLASSES/" 2>/dev/null
     else
       echo "⚠️  Skipping Logger.class copy: $DST_CLASSES does not exist."
     fi
   else
-    echo "⚠️ Logger.class not found at $LOGGER_CLASS"
+    echo "⚠️ Logger.class not found at $LOGGER_DIR"
   fi
 done
 
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-place sync of a module's instrumented classes into target/classes and target/test-classes
+ * (what script/sync-classes.sh does with one cp per file). Originals are moved, not copied, into
+ * target/coverage-sync-backup, and target/coverage-sync.manifest lists every file that was
+ * replaced or added, so {@link #restore} can put the module back with renames only. The Logger
+ * and listener classes are installed the same way.
+ */
+public class ClassSync {
+    static final String BACKUP_DIR = "coverage-sync-backup";
+    static final String MANIFEST = "coverage-sync.manifest";
+
+    private static final String REPLACED = "R";
+    private static final String ADDED = "A";
+    // Runtime classes copied out of the jar this class was loaded from, if it was
+    private static Path extractedRuntime;
+
+    /** A class file to install, relative to target/. */
+    private static class Copy {
+        final Path source;
+        final String relative;
+
+        Copy(Path source, String relative) {
+            this.source = source;
+            this.relative = relative;
+        }
+    }
+
+    /** Number of files installed into a module. Originals are only moved the first time a file is synced. */
+    static int sync(Path moduleDir, Path runtimeClasses) throws IOException {
+        Path target = moduleDir.resolve("target");
+        if (!Files.isDirectory(target)) {
+            System.err.println("⚠️ Skipping sync: " + target + " does not exist.");
+            return 0;
+        }
+
+        List<Copy> copies = new ArrayList<>();
+        collect(moduleDir.resolve("instrumented-classes"), "classes", target, copies);
+        collect(moduleDir.resolve("instrumented-test-classes"), "test-classes", target, copies);
+        if (Files.isDirectory(target.resolve("classes"))) {
+            try (Stream<Path> files = Files.list(runtimeClasses)) {
+                files.filter(ClassSync::isRuntimeClass)
+                        .forEach(file -> copies.add(new Copy(file, "classes/" + file.getFileName())));
+            }
+        }
+
+        // The manifest is written before anything moves, so an interrupted sync can still be restored
+        Path manifestFile = target.resolve(MANIFEST);
+        Map<String, String> manifest = readManifest(manifestFile);
+        List<String> toBackUp = new ArrayList<>();
+        for (Copy copy : copies) {
+            if (!manifest.containsKey(copy.relative)) {
+                boolean exists = Files.exists(target.resolve(copy.relative));
+                manifest.put(copy.relative, exists ? REPLACED : ADDED);
+                if (exists) toBackUp.add(copy.relative);
+            }
+        }
+        writeManifest(manifestFile, manifest);
+
+        Path backupDir = target.resolve(BACKUP_DIR);
+        toBackUp.parallelStream().forEach(relative -> move(target.resolve(relative), backupDir.resolve(relative)));
+        copies.parallelStream().forEach(copy -> {
+            try {
+                Path destination = target.resolve(copy.relative);
+                Files.createDirectories(destination.getParent());
+                Files.copy(copy.source, destination, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return copies.size();
+    }
+
+    /** Puts the original class files back and removes the added ones. Returns the number of files restored. */
+    static int restore(Path moduleDir) throws IOException {
+        Path target = moduleDir.resolve("target");
+        Path manifestFile = target.resolve(MANIFEST);
+        if (!Files.exists(manifestFile)) return 0;
+
+        Map<String, String> manifest = readManifest(manifestFile);
+        Path backupDir = target.resolve(BACKUP_DIR);
+        manifest.entrySet().parallelStream().forEach(entry -> {
+            Path file = target.resolve(entry.getKey());
+            Path backup = backupDir.resolve(entry.getKey());
+            try {
+                if (entry.getValue().equals(ADDED)) {
+                    Files.deleteIfExists(file);
+                } else if (Files.exists(backup)) {
+                    move(backup, file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        if (Files.exists(backupDir)) {
+            try (Stream<Path> files = Files.walk(backupDir)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.delete(manifestFile);
+        return manifest.size();
+    }
+
+    /**
+     * Directory with Logger*.class and Coverage*Listener.class: where this class was loaded from,
+     * or a temporary copy of them when that is a jar. The copy is made once per JVM and deleted
+     * when the JVM exits.
+     */
+    static synchronized Path runtimeClasses() throws IOException {
+        if (extractedRuntime != null) return extractedRuntime;
+        Path location;
+        try {
+            location = Paths.get(Logger.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (Files.isDirectory(location)) return location;
+
+        Path extracted = Files.createTempDirectory("coverage-runtime");
+        // Deleted in reverse order of registration: the files, then the directory
+        extracted.toFile().deleteOnExit();
+        try (JarFile jar = new JarFile(location.toFile())) {
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                if (entry.getName().indexOf('/') == -1 && isRuntimeClass(Paths.get(entry.getName()))) {
+                    Path file = extracted.resolve(entry.getName());
+                    file.toFile().deleteOnExit();
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        Files.copy(in, file);
+                    }
+                }
+            }
+        }
+        extractedRuntime = extracted;
+        return extracted;
+    }
+
+    /** Logger*.class and Coverage*Listener.class: what instrumented classes need at run time. */
+    static boolean isRuntimeClass(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".class")
+                && (name.startsWith("Logger") || (name.startsWith("Coverage") && name.contains("Listener")));
+    }
+
+    private static void collect(Path sourceDir, String targetSubdir, Path target, List<Copy> copies) throws IOException {
+        if (!Files.isDirectory(sourceDir)) return;
+        if (!Files.isDirectory(target.resolve(targetSubdir))) {
+            System.err.println("⚠️ No destination classes at " + target.resolve(targetSubdir) + ", skipping.");
+            return;
+        }
+        try (Stream<Path> files = Files.walk(sourceDir)) {
+            files.filter(file -> file.toString().endsWith(".class"))
+                    .forEach(file -> copies.add(new Copy(file,
+                            targetSubdir + "/" + sourceDir.relativize(file).toString().replace('\\', '/'))));
+        }
+    }
+
+    private static void move(Path from, Path to) {
+        try {
+            Files.createDirectories(to.getParent());
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, String> readManifest(Path manifestFile) throws IOException {
+        Map<String, String> manifest = new TreeMap<>();
+        if (Files.exists(manifestFile)) {
+            for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    manifest.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(Path manifestFile, Map<String, String> manifest) throws IOException {
+        List<String> lines = manifest.entrySet().stream()
+                .map(entry -> entry.getValue() + "\t" + entry.getKey())
+                .collect(Collectors.toList());
+        Path tmp = manifestFile.resolveSibling(MANIFEST + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,5 +1,11 @@
 import soot.*;
 import soot.jimple.*;
+import util.BodyAnalysis;
+import util.ControlFlowUtil;
+import util.LineSpecIndex;
+import util.ProbeArrays;
+import util.ProbeOptions;
+import util.ProbeRegistry;
 import util.RuntimeLogUtil;
 
 import java.util.*;
@@ -7,10 +13,25 @@ import java.util.stream.Collectors;
 
 public class ConditionTransformer extends BodyTransformer {
 
-    private final Map<String, Set<Integer>> linesToInstrument;
+    private final LineSpecIndex lineSpec;
+    private final ProbeRegistry probes;
+    private final ProbeOptions probeOptions;
+    private final ProbeArrays probeArrays;
 
-    public ConditionTransformer(Map<String, Set<Integer>> linesToInstrument) {
-        this.linesToInstrument = linesToInstrument;
+    public ConditionTransformer(LineSpecIndex lineSpec, ProbeRegistry probes) {
+        this(lineSpec, probes, ProbeOptions.DEFAULT, null);
+    }
+
+    /**
+     * SUBCONDITION_CHECKED probes are guarded by the slots of probeArrays in classes that have an
+     * array, and with {@link ProbeOptions#onceInLoops} by a local flag inside loops elsewhere.
+     */
+    public ConditionTransformer(LineSpecIndex lineSpec, ProbeRegistry probes, ProbeOptions probeOptions,
+                                ProbeArrays probeArrays) {
+        this.lineSpec = lineSpec;
+        this.probes = probes;
+        this.probeOptions = probeOptions;
+        this.probeArrays = probeArrays;
     }
 
     @Override
@@ -21,27 +42,18 @@ public class ConditionTransformer extends BodyTransformer {
         if (className.startsWith("Logger") || className.endsWith("Test")) {
             return;
         }
-        Set<Integer> requestedLines = findInstrumentedLines(className);
-        if (requestedLines == null || requestedLines.isEmpty()) {
+        if (lineSpec.linesFor(className).length == 0) {
             return;
         }
 
-        // Get actual lines inside the method
-        Set<Integer> bodyLines = body.getUnits().stream()
-                .map(Unit::getJavaSourceStartLineNumber)
-                .filter(line -> line > 0)
-                .collect(Collectors.toSet());
-
-        // Filter only matching lines
-        Set<Integer> relevantLines = requestedLines.stream()
-                .filter(reqLine -> bodyLines.stream().anyMatch(bodyLine -> Math.abs(bodyLine - reqLine) <= 1))
-                .collect(Collectors.toSet());
-
-        if (relevantLines.isEmpty()) {
+        // Requested lines with a body line within +/-1, shared with the other transformers of the pack
+        int[] relevantLines = BodyAnalysis.of(body).relevantLines(lineSpec, className);
+        if (relevantLines.length == 0) {
             return;
         }
 
-        instrumentConditions(body, relevantLines);
+        instrumentConditions(body, Arrays.stream(relevantLines).boxed()
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
     }
 
     private void instrumentConditions(Body body, Set<Integer> linesToProcess) {
@@ -52,6 +64,12 @@ public class ConditionTransformer extends BodyTransformer {
         Map<Integer, Integer> subconditionCounterMap = new HashMap<>();
 
         SootMethod logMethod = Scene.v().getMethod("<Logger: void log(java.lang.String)>");
+        SootMethod hitMethod = Scene.v().getMethod(probeOptions.probeMethod());
+        String className = body.getMethod().getDeclaringClass().getName();
+        String sourceFile = LineSpecIndex.sourceFile(className);
+        SootMethod accessor = probeArrays == null ? null : ProbeArrays.accessor(body.getMethod().getDeclaringClass());
+        // Graph of the body before this transformer's edits; built once the first condition is found
+        Set<Unit> inLoops = null;
 
         for (Unit stmt : safeUnits) {
             int line = stmt.getJavaSourceStartLineNumber();
@@ -62,13 +80,24 @@ public class ConditionTransformer extends BodyTransformer {
                 int subCounter = subconditionCounterMap.getOrDefault(line, 1);
 
                 // Log SUBCONDITION_CHECKED
-                RuntimeLogUtil.insertSubconditionCheckedLog(
-                        subCounter,
-                        stmt,
-                        units,
-                        body,
-                        logMethod
-                );
+                int probeId = probes.registerSubcondition(className, sourceFile, line, subCounter);
+                if (inLoops == null) {
+                    inLoops = accessor == null && probeOptions.onceInLoops
+                            ? ControlFlowUtil.unitsInLoops(BodyAnalysis.of(body).graph()) : Collections.emptySet();
+                }
+                if (accessor != null) {
+                    RuntimeLogUtil.insertProbeHitUnlessSeen(probeId, probeArrays.slot(className, probeId), stmt, body,
+                            accessor, hitMethod);
+                } else if (inLoops.contains(stmt)) {
+                    RuntimeLogUtil.insertProbeHitOncePerInvocation(probeId, stmt, body, hitMethod);
+                } else {
+                    RuntimeLogUtil.insertSubconditionCheckedLog(
+                            probeId,
+                            stmt,
+                            units,
+                            hitMethod
+                    );
+                }
 
                 // Instrument the condition (e.g., add logs and wrap it)
                 Value newCond = ConditionInstrumenter.instrument(
@@ -88,13 +117,4 @@ public class ConditionTransformer extends BodyTransformer {
             }
         }
     }
-
-    private Set<Integer> findInstrumentedLines(String className) {
-        String classFilePath = className.replace('.', '/') + ".java";
-        return linesToInstrument.entrySet().stream()
-                .filter(entry -> classFilePath.contains(entry.getKey()) || entry.getKey().contains(classFilePath))
-                .map(Map.Entry::getValue)
-                .findFirst()
-                .orElse(null);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,202 @@
+import util.InstrumentationCache;
+import util.LineSpecIndex;
+import util.ProbeOptions;
+import util.ProbeRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Instruments product classes with the EXERCISED and SUBCONDITION probes of Main as the test
+ * run loads them, so only classes the tests actually load are run through Soot and nothing is
+ * written to target/. Start it with
+ * {@code -javaagent:soot-instrument-jar-with-dependencies.jar=lines=enforcing_statements.txt[,cache=DIR][,manifest=FILE][,probes=minimal][,loop-probes=every][,probe-arrays][,hit-counts][,verbose]}
+ * and bracket tests with CoverageRunListener / CoverageTestExecutionListener (Main --tests=listener).
+ * The progress output of Main and Soot is only printed with verbose, so tests that capture
+ * System.out see none of it.
+ * <p>
+ * Each product class the line spec touches costs a Soot run of its own when it is loaded, with
+ * the class's code source and the whole java.class.path on the Soot classpath, so its supertypes
+ * resolve for the frames Soot computes. Such a class load takes from a fraction of a second to
+ * a few seconds (the first ones, while Soot warms up) instead of microseconds; with cache=, later
+ * runs only re-instrument changed classes. Classes named *Test are never run through Soot.
+ * <p>
+ * Forked test JVMs share probe IDs through a counter file next to the manifest (or the cache's
+ * counter) and write their probes into the manifest when they exit. Probe sites already in the
+ * manifest keep their IDs, so later JVMs and later runs neither take new IDs for them nor add
+ * rows. Classes Soot synthesizes for
+ * lambdas are put on the system class path, so classes from other loaders that need them are
+ * left as they are.
+ */
+public class CoverageAgent implements ClassFileTransformer {
+
+    private final LineSpecIndex lineSpec;
+    private final ProbeRegistry probes;
+    private final InstrumentationCache cache;
+    private final ProbeOptions probeOptions;
+    private final String runtimeClasses;
+    private final Instrumentation instrumentation;
+    private final boolean verbose;
+    private final Path workRoot;
+    // Classes Soot synthesized for lambdas of instrumented classes; already instrumented
+    private final Set<String> synthesized = ConcurrentHashMap.newKeySet();
+    // Soot loads classes itself while instrumenting; those loads are not instrumented
+    private final ThreadLocal<Boolean> busy = ThreadLocal.withInitial(() -> false);
+
+    CoverageAgent(LineSpecIndex lineSpec, ProbeRegistry probes, InstrumentationCache cache, ProbeOptions probeOptions,
+                  String runtimeClasses, Instrumentation instrumentation, boolean verbose) throws IOException {
+        this.lineSpec = lineSpec;
+        this.probes = probes;
+        this.cache = cache;
+        this.probeOptions = probeOptions;
+        this.runtimeClasses = runtimeClasses;
+        this.instrumentation = instrumentation;
+        this.verbose = verbose;
+        this.workRoot = Files.createTempDirectory("coverage-agent");
+        workRoot.toFile().deleteOnExit();
+    }
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) throws IOException {
+        Map<String, String> options = parseAgentArgs(agentArgs);
+        String linesFile = options.get("lines");
+        if (linesFile == null) {
+            System.err.println("[CoverageAgent] Missing lines=<file-with-lines-to-instrument>, not instrumenting.");
+            return;
+        }
+
+        ProbeOptions probeOptions;
+        try {
+            probeOptions = ProbeOptions.parse(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[CoverageAgent] " + e.getMessage() + " Not instrumenting.");
+            return;
+        }
+
+        LineSpecIndex lineSpec = new LineSpecIndex(Main.readLinesFromFile(linesFile));
+        Path manifest = Paths.get(options.getOrDefault("manifest", ProbeRegistry.MANIFEST_FILE)).toAbsolutePath();
+        ProbeRegistry probes = new ProbeRegistry();
+        InstrumentationCache cache = Main.openCache(options, "class", lineSpec);
+        probes.reserveFrom(cache != null ? cache.probeCounter() : manifest.resolveSibling(manifest.getFileName() + ".ids"));
+        probes.registerKnown(manifest);
+
+        CoverageAgent agent = new CoverageAgent(lineSpec, probes, cache, probeOptions, ClassSync.runtimeClasses().toString(), instrumentation,
+                Boolean.parseBoolean(options.getOrDefault("verbose", "false")));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> agent.finish(manifest)));
+        instrumentation.addTransformer(agent);
+    }
+
+    /** "key=value,key=value" */
+    static Map<String, String> parseAgentArgs(String agentArgs) {
+        Map<String, String> options = new HashMap<>();
+        if (agentArgs == null || agentArgs.isEmpty()) return options;
+        for (String option : agentArgs.split(",")) {
+            int eq = option.indexOf('=');
+            if (eq == -1) {
+                options.put(option, "true");
+            } else {
+                options.put(option.substring(0, eq), option.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String internalName, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (loader == null || internalName == null || classBeingRedefined != null || busy.get()) return null;
+        String className = internalName.replace('/', '.');
+        // The transformers leave test classes alone
+        if (className.endsWith("Test") || !lineSpec.touches(className) || synthesized.contains(internalName)) return null;
+
+        busy.set(true);
+        try {
+            return instrument(loader, className, protectionDomain, classfileBuffer);
+        } catch (Throwable e) {
+            System.err.println("[CoverageAgent] Leaving " + className + " uninstrumented: " + e);
+            return null;
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    // Soot is one global instance, so classes are instrumented one at a time
+    private synchronized byte[] instrument(ClassLoader loader, String className, ProtectionDomain protectionDomain,
+                                           byte[] classfileBuffer) throws IOException {
+        Path workDir = Files.createTempDirectory(workRoot, "class");
+        try {
+            String entry = className.replace('.', '/') + ".class";
+            Path input = workDir.resolve("target/classes").resolve(entry);
+            Files.createDirectories(input.getParent());
+            Files.write(input, classfileBuffer);
+
+            // The buffer first, then Logger, where the class came from and the rest of the class path
+            StringBuilder classpath = new StringBuilder(workDir.resolve("target/classes").toString())
+                    .append(File.pathSeparator).append(runtimeClasses);
+            Path location = codeSource(protectionDomain);
+            if (location != null) classpath.append(File.pathSeparator).append(location);
+            classpath.append(File.pathSeparator).append(System.getProperty("java.class.path"));
+
+            Main.instrumentTarget(workDir.toString(), "classes", "class", false, 1, probeOptions, lineSpec, probes, cache,
+                    classpath.toString(), verbose);
+
+            Map<String, byte[]> outputs = new TreeMap<>();
+            Main.collectClassFiles(workDir.resolve("instrumented-classes"), outputs);
+            byte[] instrumented = outputs.remove(entry);
+            if (instrumented == null || outputs.isEmpty()) return instrumented;
+
+            if (loader != ClassLoader.getSystemClassLoader()) {
+                System.err.println("[CoverageAgent] Leaving " + className + " uninstrumented: its lambda classes"
+                        + " cannot be added to " + loader);
+                return null;
+            }
+            Path jar = workRoot.resolve(entry.replace('/', '_') + ".jar");
+            jar.toFile().deleteOnExit();
+            try (OutputStream file = Files.newOutputStream(jar); JarOutputStream out = new JarOutputStream(file)) {
+                for (Map.Entry<String, byte[]> lambdaClass : outputs.entrySet()) {
+                    out.putNextEntry(new JarEntry(lambdaClass.getKey()));
+                    out.write(lambdaClass.getValue());
+                    String name = lambdaClass.getKey();
+                    synthesized.add(name.substring(0, name.length() - ".class".length()));
+                }
+            }
+            instrumentation.appendToSystemClassLoaderSearch(new JarFile(jar.toFile()));
+            return instrumented;
+        } finally {
+            Main.deleteRecursively(workDir);
+        }
+    }
+
+    private static Path codeSource(ProtectionDomain protectionDomain) {
+        CodeSource source = protectionDomain == null ? null : protectionDomain.getCodeSource();
+        if (source == null || source.getLocation() == null) return null;
+        try {
+            return Paths.get(source.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    void finish(Path manifest) {
+        try {
+            probes.releaseReserved();
+            probes.appendToManifest(manifest);
+            System.err.println("[CoverageAgent] " + probes.size() + " probes written to " + manifest);
+        } catch (IOException e) {
+            System.err.println("[CoverageAgent] Cannot write probe manifest " + manifest + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * JUnit 4 listener that brackets every test with Logger.startTest/endTest, so test classes
+ * don't need to be instrumented (Main --tests=listener). Register it with surefire:
+ * {@code <properties><property><name>listener</name><value>CoverageRunListener</value></property></properties>}
+ */
+@RunListener.ThreadSafe
+public class CoverageRunListener extends RunListener {
+
+    @Override
+    public void testStarted(Description description) {
+        Logger.startTest(signature(description));
+    }
+
+    @Override
+    public void testFinished(Description description) {
+        Logger.endTest(signature(description));
+    }
+
+    private static String signature(Description description) {
+        String methodName = description.getMethodName();
+        return Logger.testSignature(description.getClassName(), methodName == null ? description.getDisplayName() : methodName);
+    }
+}
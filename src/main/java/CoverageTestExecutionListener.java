@@ -0,0 +1,36 @@
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.TestSource;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+
+/**
+ * JUnit Platform (JUnit 5) listener that brackets every test with Logger.startTest/endTest,
+ * so test classes don't need to be instrumented. Main --tests=listener registers it through
+ * META-INF/services/org.junit.platform.launcher.TestExecutionListener in target/test-classes.
+ */
+public class CoverageTestExecutionListener implements TestExecutionListener {
+
+    @Override
+    public void executionStarted(TestIdentifier testIdentifier) {
+        if (testIdentifier.isTest()) {
+            Logger.startTest(signature(testIdentifier));
+        }
+    }
+
+    @Override
+    public void executionFinished(TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+        if (testIdentifier.isTest()) {
+            Logger.endTest(signature(testIdentifier));
+        }
+    }
+
+    private static String signature(TestIdentifier testIdentifier) {
+        TestSource source = testIdentifier.getSource().orElse(null);
+        if (source instanceof MethodSource) {
+            MethodSource method = (MethodSource) source;
+            return Logger.testSignature(method.getClassName(), method.getMethodName());
+        }
+        return Logger.testSignature(testIdentifier.getUniqueId(), testIdentifier.getDisplayName());
+    }
+}
@@ -1,8 +1,13 @@
 import soot.*;
 import soot.tagkit.LineNumberTag;
 import soot.tagkit.Tag;
-import soot.toolkits.graph.ExceptionalUnitGraph;
+import util.BodyAnalysis;
 import util.ControlFlowUtil;
+import util.LineOwners;
+import util.LineSpecIndex;
+import util.ProbeArrays;
+import util.ProbeOptions;
+import util.ProbeRegistry;
 import util.RuntimeLogUtil;
 
 import java.util.*;
@@ -10,11 +15,31 @@ import java.util.stream.Collectors;
 
 public class ExercisedLineTransformer extends BodyTransformer {
 
-    private final Map<String, Set<Integer>> linesToInstrument;
-    private static final Set<String> linesLogged = new HashSet<>();
+    private final LineSpecIndex lineSpec;
+    private final ProbeRegistry probes;
+    private final ProbeOptions probeOptions;
+    private final ProbeArrays probeArrays;
+    private final LineOwners lineOwners;
 
-    public ExercisedLineTransformer(Map<String, Set<Integer>> linesToInstrument) {
-        this.linesToInstrument = linesToInstrument;
+    public ExercisedLineTransformer(LineSpecIndex lineSpec, ProbeRegistry probes) {
+        this(lineSpec, probes, ProbeOptions.DEFAULT, null, null);
+    }
+
+    /**
+     * With {@link ProbeOptions#minimal}, lines whose anchor units always run together share one
+     * probe (see {@link ControlFlowUtil#controlEquivalentGroups}); the others are registered as
+     * inferred from it. Probes are guarded by the slots of probeArrays in classes that have an
+     * array, and with {@link ProbeOptions#onceInLoops} by a local flag inside loops elsewhere.
+     * With lineOwners, a line is probed only in the methods it picks for it; without, in every
+     * body with a line within +/-1 of it.
+     */
+    public ExercisedLineTransformer(LineSpecIndex lineSpec, ProbeRegistry probes, ProbeOptions probeOptions,
+                                    ProbeArrays probeArrays, LineOwners lineOwners) {
+        this.lineSpec = lineSpec;
+        this.probes = probes;
+        this.probeOptions = probeOptions;
+        this.probeArrays = probeArrays;
+        this.lineOwners = lineOwners;
     }
 
     @Override
@@ -24,32 +49,21 @@ public class ExercisedLineTransformer extends BodyTransformer {
         // Skip Logger or Test classes
         if (className.startsWith("Logger") || className.endsWith("Test")) return;
 
-        System.out.println("Instrumenting EXERCISED in: " + body.getMethod().getSignature());
-
-        Set<Integer> requestedLines = findInstrumentedLines(className);
-        if (requestedLines == null || requestedLines.isEmpty()) return;
-
-        // Get actual lines inside the method
-        Set<Integer> bodyLines = body.getUnits().stream()
-                .map(u -> u.getJavaSourceStartLineNumber())
-                .filter(line -> line > 0)
-                .collect(Collectors.toSet());
-
-        // Filter only matching lines
-        Set<Integer> relevantLines = requestedLines.stream()
-                .filter(reqLine ->
-                        bodyLines.stream().anyMatch(bodyLine -> Math.abs(bodyLine - reqLine) <= 1) // allow +/-1 offset
-                )
-                .collect(Collectors.toSet());
+        if (lineSpec.linesFor(className).length == 0) return;
 
-        if (relevantLines.isEmpty()) return;
+        // Requested lines with a body line within +/-1, unless another method of the class takes them
+        int[] relevantLines = BodyAnalysis.of(body).relevantLines(lineSpec, className);
+        Set<Integer> linesToProcess = Arrays.stream(relevantLines).boxed()
+                .filter(line -> lineOwners == null || lineOwners.owns(body.getMethod(), line))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (linesToProcess.isEmpty()) return;
 
         // Instrument the matched lines
-        instrumentLineExercised(body, relevantLines);
+        instrumentLineExercised(body, linesToProcess);
     }
 
     private void instrumentLineExercised(Body body, Set<Integer> linesToProcess) {
-        ExceptionalUnitGraph cfg = new ExceptionalUnitGraph(body);
+        BodyAnalysis analysis = BodyAnalysis.of(body);
         PatchingChain<Unit> units = body.getUnits();
         List<Unit> safeUnits = new ArrayList<>(units);
 
@@ -67,41 +81,65 @@ public class ExercisedLineTransformer extends BodyTransformer {
                     lineToStmts.computeIfAbsent(line, k -> new ArrayList<>()).add(unit);
                 });
 
-        String classFile = body.getMethod().getDeclaringClass().getName().replace('.', '/') + ".java";
-        SootMethod logMethod = Scene.v().getMethod("<Logger: void log(java.lang.String)>");
-
-        linesToProcess.stream()
-                .map(line -> new AbstractMap.SimpleEntry<>(line, ControlFlowUtil.findBestStmtUsingCPG(cfg, lineToStmts, line)))
-                .peek(entry -> {
-                    int line = entry.getKey();
-                    Unit bestStmt = entry.getValue();
-                    if (bestStmt != null) {
-                        int actualLine = bestStmt.getJavaSourceStartLineNumber();
-                        System.out.println("[ExercisedLineTransformer] Requested line " + line + ", found best Unit at line " + actualLine);
-                    } else {
-                        System.out.println("[ExercisedLineTransformer] Requested line " + line + ", but no reachable Unit found!");
+        String className = body.getMethod().getDeclaringClass().getName();
+        String classFile = LineSpecIndex.sourceFile(className);
+        SootMethod hitMethod = Scene.v().getMethod(probeOptions.probeMethod());
+        // Placement uses the graph of the body as it was before the first probe went in
+        ControlFlowUtil.LineIndex lineIndex = analysis.lineIndex();
+
+        Map<Integer, Unit> anchors = new LinkedHashMap<>();
+        for (int line : linesToProcess) {
+            Unit bestStmt = ControlFlowUtil.findBestStmtUsingCPG(lineIndex, lineToStmts, line);
+            if (bestStmt == null) {
+                System.out.println("[ExercisedLineTransformer] Requested line " + line + " of "
+                        + body.getMethod().getSignature() + ", but no reachable Unit found!");
+            } else {
+                anchors.put(line, bestStmt);
+            }
+        }
+
+        SootMethod accessor = probeArrays == null ? null : ProbeArrays.accessor(body.getMethod().getDeclaringClass());
+        Set<Unit> inLoops = accessor == null && probeOptions.onceInLoops && !anchors.isEmpty()
+                ? ControlFlowUtil.unitsInLoops(analysis.graph()) : Collections.emptySet();
+
+        if (!probeOptions.minimal) {
+            // A line probed in several bodies (e.g. every constructor) gets the same ID in each
+            anchors.forEach((line, anchor) -> {
+                int probeId = probes.registerLine(className, classFile, line);
+                insertProbe(body, anchor, probeId, hitMethod, accessor, inLoops);
+            });
+        } else {
+            Map<Unit, List<Integer>> linesByAnchor = new LinkedHashMap<>();
+            anchors.forEach((line, anchor) -> linesByAnchor.computeIfAbsent(anchor, k -> new ArrayList<>()).add(line));
+            for (List<Unit> group : ControlFlowUtil.controlEquivalentGroups(analysis.graph(), linesByAnchor.keySet())) {
+                // The last unit of the group runs only after all the others did
+                Unit probeAnchor = group.get(group.size() - 1);
+                List<Integer> probeLines = linesByAnchor.get(probeAnchor);
+                int probeId = probes.registerLine(className, classFile, probeLines.get(0));
+                insertProbe(body, probeAnchor, probeId, hitMethod, accessor, inLoops);
+                for (Unit anchor : group) {
+                    for (int line : linesByAnchor.get(anchor)) {
+                        if (anchor != probeAnchor || line != probeLines.get(0)) {
+                            probes.registerInferredLine(className, classFile, line, probeId);
+                        }
                     }
-                })
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry -> {
-                    String lineKey = classFile + ":" + entry.getKey();
-                    return !linesLogged.contains(lineKey);
-                })
-                .forEach(entry -> {
-                    int line = entry.getKey();
-                    Unit bestStmt = entry.getValue();
-                    String lineKey = classFile + ":" + line;
-                    RuntimeLogUtil.insertLineExercisedLog(bestStmt, units, classFile, line, logMethod);
-                    linesLogged.add(lineKey);
-                });
+                }
+            }
+        }
+
+        // Only untagged probe calls were inserted, so line results stay valid for later transformers
+        analysis.lineNeutralEdit();
     }
 
-    private Set<Integer> findInstrumentedLines(String className) {
-        String classFilePath = className.replace('.', '/') + ".java";
-        return linesToInstrument.entrySet().stream()
-                .filter(entry -> classFilePath.contains(entry.getKey()) || entry.getKey().contains(classFilePath))
-                .map(Map.Entry::getValue)
-                .findFirst()
-                .orElse(null);
+    private void insertProbe(Body body, Unit anchor, int probeId, SootMethod hitMethod, SootMethod accessor,
+                             Set<Unit> inLoops) {
+        if (accessor != null) {
+            int slot = probeArrays.slot(body.getMethod().getDeclaringClass().getName(), probeId);
+            RuntimeLogUtil.insertProbeHitUnlessSeen(probeId, slot, anchor, body, accessor, hitMethod);
+        } else if (inLoops.contains(anchor)) {
+            RuntimeLogUtil.insertProbeHitOncePerInvocation(probeId, anchor, body, hitMethod);
+        } else {
+            RuntimeLogUtil.insertLineExercisedLog(anchor, body.getUnits(), probeId, hitMethod);
+        }
     }
 }
\ No newline at end of file
@@ -1,76 +1,771 @@
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Logger {
-    // Collect logs for current test case
-    private static final List<String> logsThisTestCase = Collections.synchronizedList(new ArrayList<>());
+    // Suppression of legacy log(String) EXERCISED/SUBCONDITION_CHECKED messages inside a test case.
+    // Keys are interned to IDs once, so the per-test state is a bitset rather than a set of strings.
+    private static final Map<String, Integer> legacyKeyIds = new HashMap<>();
 
-    // Subcondition suppression inside a test case
-    private static final Set<String> seenSubconditions = Collections.synchronizedSet(new HashSet<>());
-    private static final Set<String> seenLines = Collections.synchronizedSet(new HashSet<>());
+    // Every test case gets its own TestContext. A thread's context is inherited by the threads it
+    // starts and can be carried into executor tasks with wrap(...), so tests running in parallel in
+    // one JVM keep separate coverage. Threads that outlive their test (or were never started by one)
+    // attribute their hits to the most recently started test, like the old single global buffer.
+    private static final TestContext ROOT = new TestContext();
+    private static volatile TestContext lastStarted = ROOT;
+    private static final RecorderLocal recorder = new RecorderLocal();
+
+    // Output location. -Dcoverage.dir picks the directory (default: working directory).
+    // With -Dcoverage.perProcess=true each JVM writes coverage-[fork-]<pid>.log/.bin, so parallel
+    // surefire forks (-Dcoverage.fork=${surefire.forkNumber}) never share a file; util.CoverageMerger
+    // combines them afterwards.
+    private static final Path TEXT_LOG = outputFile("coverage", ".log");
+    private static final Path BINARY_LOG = outputFile("coverage", ".bin");
 
     // Overall batch writing
     private static final List<String> statements = Collections.synchronizedList(new ArrayList<>());
     private static final int FLUSH_THRESHOLD = 1000;
 
+    // Binary output (-Dcoverage.format=binary): probe hits only, read back by util.CoverageLogReader.
+    // Layout: "SCOV", version, varint-length probe manifest (from -Dcoverage.manifest, may be empty),
+    // then per test: RECORD_TEST, varint-length UTF-8 test name, varint count, varint deltas of sorted IDs,
+    // and with hit counts RECORD_COUNTS, varint count, then per sorted ID its varint delta and varint hits.
+    private static final boolean BINARY = "binary".equalsIgnoreCase(System.getProperty("coverage.format", "text"));
+    static final byte[] BINARY_MAGIC = {'S', 'C', 'O', 'V'};
+    static final int BINARY_VERSION = 1;
+    static final int RECORD_TEST = 1;
+    static final int RECORD_COUNTS = 2;
+    private static final int BINARY_BUFFER_SIZE = 1 << 20;
+    private static final int BINARY_FLUSH_THRESHOLD = BINARY_BUFFER_SIZE / 4 * 3;
+    static final String START_MARKER = "=== START TEST: ";
+    private static final String MARKER_SUFFIX = " ===";
+
+    private static ByteBuffer binaryBuffer;                     // guarded by statements
+
+    // Probe arrays of classes instrumented with --probe-arrays (util.ProbeArrays). A probe only
+    // calls hit while its slot is clear; the slots are cleared when a test starts.
+    private static final List<boolean[]> probeArrays = new ArrayList<>(); // guarded by itself
+
+    // Disk writes happen on a background thread unless -Dcoverage.async=false
+    private static final AsyncWriter writer = Boolean.parseBoolean(System.getProperty("coverage.async", "true"))
+            ? new AsyncWriter(Integer.getInteger("coverage.queue", 64), System.getProperty("coverage.backpressure", "block"))
+            : null;
+
     static {
-        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush));
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::shutdown));
+    }
+
+    /**
+     * Records a probe site by its instrumentation-time ID. The ID is resolved back to
+     * file/line/index through the probe manifest when the log is post-processed.
+     */
+    public static void hit(int probeId) {
+        ProbeRecorder rec = recorder.get();
+        TestContext target = rec.context.closed ? lastStarted : rec.context;
+        // Already-seen fast path: no lock and no allocation. Only the owner thread writes rec.seen.
+        if (rec.bound == target && rec.seen.get(probeId)) {
+            return;
+        }
+        rec.record(probeId, target);
+    }
+
+    /**
+     * Like {@link #hit(int)}, and also counts every execution of the site (Main --hit-counts).
+     * Each thread counts into its own long[] indexed by probe ID, so counting takes no lock;
+     * the counts are merged into the test case and written by {@link #flushLogs()}.
+     */
+    public static void count(int probeId) {
+        ProbeRecorder rec = recorder.get();
+        TestContext target = rec.context.closed ? lastStarted : rec.context;
+        if (rec.bound != target || !rec.seen.get(probeId)) {
+            rec.recordCounted(probeId, target);
+        }
+        rec.counts[probeId]++;
+    }
+
+    /** A new probe array for an instrumented class, asked for once by its $coverageInit(). */
+    public static boolean[] probeArray(int size) {
+        boolean[] array = new boolean[size];
+        synchronized (probeArrays) {
+            probeArrays.add(array);
+        }
+        return array;
     }
 
     public static void log(String id) {
-        synchronized (logsThisTestCase) {
+        TestContext ctx = currentContext();
+        synchronized (ctx) {
+            ctx.drainRecorders(); // keep probe hits ordered before this message
+            if (BINARY) {
+                // The binary format only keeps the test name and its probe IDs
+                if (id.startsWith(START_MARKER) && id.endsWith(MARKER_SUFFIX)) {
+                    ctx.testName = id.substring(START_MARKER.length(), id.length() - MARKER_SUFFIX.length());
+                }
+                return;
+            }
             if (id.contains("event: SUBCONDITION_CHECKED")) {
                 String key = extractSubconditionKey(id);  // file + line + index
-                if (seenSubconditions.contains(key)) {
+                if (!ctx.seenLegacy.add(legacyKeyId(key))) {
                     return; // already logged this exact subcondition
                 }
-                seenSubconditions.add(key);
             } else if (id.contains("event: EXERCISED")) {
                 String key = extractLineKey(id);  // file + line only
-                if (seenLines.contains(key)) {
+                if (!ctx.seenLegacy.add(legacyKeyId(key))) {
                     return; // already logged this line executed
                 }
-                seenLines.add(key);
             }
-            logsThisTestCase.add(id);
+            ctx.logs.add(id);
         }
     }
 
+    /** Hands all buffered output to the writer; written inline when async writing is off. */
     public static void flush() {
         synchronized (statements) {
+            if (binaryBuffer != null && binaryBuffer.position() > 0) {
+                handOffBinary();
+            }
             if (statements.isEmpty()) return;
-            try (FileWriter fw = new FileWriter("coverage.log", true);
-                 PrintWriter pw = new PrintWriter(fw)) {
-                for (String s : statements) {
-                    pw.println(s);
+            List<String> lines = new ArrayList<>(statements);
+            statements.clear();
+            submit(new Batch(lines, null));
+        }
+    }
+
+    /** Lines that test cases have ended with and that are not yet handed to the writer (for tests). */
+    static List<String> takePendingLines() {
+        synchronized (statements) {
+            List<String> lines = new ArrayList<>(statements);
+            statements.clear();
+            return lines;
+        }
+    }
+
+    private static void shutdown() {
+        flush();
+        if (writer != null) {
+            writer.drainAndStop();
+        }
+    }
+
+    // Caller holds the statements monitor, so batches reach the writer in order
+    private static void submit(Batch batch) {
+        if (writer == null) {
+            batch.write();
+            return;
+        }
+        writer.submit(batch);
+    }
+
+    /** Ends the calling thread's test case: its coverage is written and the context is closed. */
+    public static void flushLogs() {
+        TestContext ctx = currentContext();
+        synchronized (ctx) {
+            ctx.drainRecorders();
+            if (ctx != ROOT) {
+                ctx.closed = true;
+            }
+            if (BINARY) {
+                ctx.flushBinaryRecord();
+                return;
+            }
+            ctx.logCounts();
+            if (ctx.logs.isEmpty()) return;
+            synchronized (statements) {
+                statements.addAll(ctx.logs);
+                ctx.logs.clear();
+                if (statements.size() >= FLUSH_THRESHOLD) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /** Starts a new test case on the calling thread; threads it starts from now on inherit it. */
+    public static void resetForNewTestCase() {
+        TestContext ctx = new TestContext();
+        recorder.get().context = ctx;
+        lastStarted = ctx;
+        // Slots are shared by all threads, so tests running in parallel may miss each other's hits
+        synchronized (probeArrays) {
+            for (boolean[] array : probeArrays) {
+                Arrays.fill(array, false);
+            }
+        }
+    }
+
+    /** Starts a test case: new context plus the START marker that delimits it in the log. */
+    public static void startTest(String testSignature) {
+        resetForNewTestCase();
+        log(START_MARKER + testSignature + MARKER_SUFFIX);
+    }
+
+    /** Ends a test case started with {@link #startTest(String)} and hands its coverage to the writer. */
+    public static void endTest(String testSignature) {
+        log("=== END TEST: " + testSignature + MARKER_SUFFIX);
+        flushLogs();
+    }
+
+    /** Same shape as a Soot method signature, so parsers extract "void name()" as the test case. */
+    static String testSignature(String className, String methodName) {
+        return "<" + className + ": void " + methodName + "()>";
+    }
+
+    /** Runs {@code task} in the caller's test context, whichever pool thread executes it. */
+    public static Runnable wrap(Runnable task) {
+        TestContext ctx = currentContext();
+        return () -> {
+            ProbeRecorder rec = recorder.get();
+            TestContext previous = rec.context;
+            rec.context = ctx;
+            try {
+                task.run();
+            } finally {
+                rec.context = previous;
+            }
+        };
+    }
+
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        TestContext ctx = currentContext();
+        return () -> {
+            ProbeRecorder rec = recorder.get();
+            TestContext previous = rec.context;
+            rec.context = ctx;
+            try {
+                return task.call();
+            } finally {
+                rec.context = previous;
+            }
+        };
+    }
+
+    private static TestContext currentContext() {
+        TestContext ctx = recorder.get().context;
+        return ctx.closed ? lastStarted : ctx;
+    }
+
+    /** Coverage state of one test case. Guarded by its own monitor unless noted. */
+    private static final class TestContext {
+        final List<String> logs = new ArrayList<>();
+        final ProbeSet merged = new ProbeSet();
+        final ProbeSet seenLegacy = new ProbeSet();
+        // Recorders that have buffered hits for this context; added lock-free from ProbeRecorder.record
+        final Set<ProbeRecorder> recorders = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        volatile boolean closed;
+        String testName;
+        int[] probeIds = new int[256]; // binary mode: merged first hits
+        int probeCount;
+        long[] hitCounts = new long[0]; // by probe ID, merged from the recorders' counters
+        int[] countedIds = new int[16]; // IDs with a count since the last flush, in merge order
+        int countedCount;
+
+        // Caller holds this monitor
+        void drainRecorders() {
+            for (ProbeRecorder rec : recorders) {
+                drain(rec);
+            }
+        }
+
+        // Caller holds this monitor
+        void drain(ProbeRecorder rec) {
+            synchronized (rec) {
+                if (rec.bound == this) {
+                    for (int i = 0; i < rec.size; i++) {
+                        int probeId = rec.ids[i];
+                        if (!merged.add(probeId)) {
+                            continue; // another thread hit it first
+                        }
+                        if (BINARY) {
+                            if (probeCount == probeIds.length) {
+                                probeIds = Arrays.copyOf(probeIds, probeCount * 2);
+                            }
+                            probeIds[probeCount++] = probeId;
+                        } else {
+                            logs.add("{event: PROBE, id: " + probeId + "}");
+                        }
+                    }
+                    rec.size = 0; // keep rec.seen so later hits in this test stay suppressed
+                    for (int i = 0; i < rec.countedSize; i++) {
+                        int probeId = rec.countedIds[i];
+                        // Only the owner writes counts; a value read here while it counts is picked up next time
+                        long count = rec.counts[probeId];
+                        addCount(probeId, count - rec.merged[probeId]);
+                        rec.merged[probeId] = count;
+                    }
+                }
+                if (rec.bound != this || rec.ownerDead()) {
+                    recorders.remove(rec);
+                }
+            }
+        }
+
+        void addCount(int probeId, long delta) {
+            if (delta == 0) return;
+            if (probeId >= hitCounts.length) {
+                hitCounts = Arrays.copyOf(hitCounts, Math.max(hitCounts.length * 2, probeId + 1));
+            }
+            if (hitCounts[probeId] == 0) {
+                if (countedCount == countedIds.length) {
+                    countedIds = Arrays.copyOf(countedIds, countedCount * 2);
+                }
+                countedIds[countedCount++] = probeId;
+            }
+            hitCounts[probeId] += delta;
+        }
+
+        // Caller holds this monitor. Text mode: one line per counted probe, then the counts restart.
+        void logCounts() {
+            for (int i = 0; i < countedCount; i++) {
+                int probeId = countedIds[i];
+                logs.add("{event: PROBE_COUNT, id: " + probeId + ", count: " + hitCounts[probeId] + "}");
+                hitCounts[probeId] = 0;
+            }
+            countedCount = 0;
+        }
+
+        // Caller holds this monitor
+        void flushBinaryRecord() {
+            if (probeCount == 0 && countedCount == 0) return;
+            Arrays.sort(probeIds, 0, probeCount);
+            synchronized (statements) {
+                if (binaryBuffer == null) {
+                    binaryBuffer = ByteBuffer.allocateDirect(BINARY_BUFFER_SIZE);
+                }
+                putVarint(RECORD_TEST);
+                byte[] name = (testName == null ? "" : testName).getBytes(StandardCharsets.UTF_8);
+                putVarint(name.length);
+                for (byte b : name) {
+                    putByte(b);
+                }
+                putVarint(probeCount);
+                int previous = 0;
+                for (int i = 0; i < probeCount; i++) {
+                    putVarint(probeIds[i] - previous);
+                    previous = probeIds[i];
+                }
+                probeCount = 0;
+                if (countedCount > 0) {
+                    Arrays.sort(countedIds, 0, countedCount);
+                    putVarint(RECORD_COUNTS);
+                    putVarint(countedCount);
+                    previous = 0;
+                    for (int i = 0; i < countedCount; i++) {
+                        int probeId = countedIds[i];
+                        putVarint(probeId - previous);
+                        putVarint(hitCounts[probeId]);
+                        hitCounts[probeId] = 0;
+                        previous = probeId;
+                    }
+                    countedCount = 0;
+                }
+                if (binaryBuffer.position() >= BINARY_FLUSH_THRESHOLD) {
+                    handOffBinary();
+                }
+            }
+        }
+    }
+
+    // Caller holds the statements monitor
+    private static void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            putByte((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((byte) value);
+    }
+
+    private static void putByte(byte b) {
+        if (!binaryBuffer.hasRemaining()) {
+            handOffBinary();
+        }
+        binaryBuffer.put(b);
+    }
+
+    // Caller holds the statements monitor. The filled buffer goes to the writer and a
+    // recycled one takes its place, so encoding never waits for the disk.
+    private static void handOffBinary() {
+        ByteBuffer filled = binaryBuffer;
+        binaryBuffer = writer != null ? writer.takeFreeBuffer() : null;
+        if (binaryBuffer == null) {
+            binaryBuffer = writer != null ? ByteBuffer.allocateDirect(BINARY_BUFFER_SIZE) : filled;
+        }
+        filled.flip();
+        submit(new Batch(null, filled));
+    }
+
+    private static FileChannel openBinaryLog() throws IOException {
+        Files.createDirectories(BINARY_LOG.toAbsolutePath().getParent());
+        FileChannel ch = FileChannel.open(BINARY_LOG,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (ch.size() == 0) {
+            ByteBuffer header = binaryHeader();
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+        }
+        return ch;
+    }
+
+    private static PrintWriter openTextLog() throws IOException {
+        Files.createDirectories(TEXT_LOG.toAbsolutePath().getParent());
+        return new PrintWriter(new BufferedWriter(new FileWriter(TEXT_LOG.toFile(), true), 1 << 16));
+    }
+
+    /** A unit of output handed to the writer: text lines or a flipped binary buffer. */
+    static final class Batch {
+        final List<String> lines;
+        final ByteBuffer bytes;
+
+        Batch(List<String> lines, ByteBuffer bytes) {
+            this.lines = lines;
+            this.bytes = bytes;
+        }
+
+        // Inline write: open, append, close
+        void write() {
+            try {
+                if (lines != null) {
+                    try (PrintWriter pw = openTextLog()) {
+                        writeTo(pw);
+                    }
+                } else {
+                    try (FileChannel ch = openBinaryLog()) {
+                        writeTo(ch);
+                    }
                 }
-                statements.clear();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        void writeTo(PrintWriter pw) {
+            for (String s : lines) {
+                pw.println(s);
+            }
+        }
+
+        void writeTo(FileChannel ch) throws IOException {
+            try {
+                while (bytes.hasRemaining()) {
+                    ch.write(bytes);
+                }
+            } finally {
+                bytes.clear();
+            }
+        }
     }
 
-    public static void flushLogs() {
-        synchronized (logsThisTestCase) {
-            if (logsThisTestCase.isEmpty()) return;
-            synchronized (statements) {
-                statements.addAll(logsThisTestCase);
-                logsThisTestCase.clear();
+    /**
+     * Background writer fed by a bounded queue. When the queue is full,
+     * -Dcoverage.backpressure decides what the submitting thread does:
+     * "block" (default) waits for space, "drop" discards the batch and counts it,
+     * "spill" parks it in an unbounded overflow list the writer drains in order.
+     */
+    static class AsyncWriter implements Runnable {
+        private final BlockingQueue<Batch> queue;
+        private final Queue<Batch> spill = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+        private final String policy;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean stopping;
+        private Thread thread;
+
+        AsyncWriter(int capacity, String policy) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.policy = policy.toLowerCase();
+        }
+
+        // Caller holds the statements monitor
+        void submit(Batch batch) {
+            if (thread == null) {
+                thread = new Thread(this, "coverage-writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            // Once spilling, keep spilling until the writer catches up, to preserve order
+            if (spill.isEmpty() && queue.offer(batch)) {
+                return;
             }
-            if (statements.size() >= FLUSH_THRESHOLD) {
-                flush();
+            switch (policy) {
+                case "spill":
+                    spill.add(batch);
+                    break;
+                case "drop":
+                    dropped.incrementAndGet();
+                    break;
+                default:
+                    try {
+                        queue.put(batch);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        batch.write(); // don't lose the batch; write it on this thread
+                    }
+            }
+        }
+
+        ByteBuffer takeFreeBuffer() {
+            return freeBuffers.poll();
+        }
+
+        // The writer thread keeps both logs open and flushes whenever it runs out of work
+        private PrintWriter text;
+        private FileChannel binary;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = queue.poll();
+                    if (batch == null) {
+                        batch = spill.poll();
+                    }
+                    if (batch == null) {
+                        if (text != null) text.flush();
+                        if (stopping) return;
+                        try {
+                            batch = queue.poll(50, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            continue; // re-check the stop flag
+                        }
+                        if (batch == null) continue;
+                    }
+                    write(batch);
+                }
+            } finally {
+                if (text != null) text.close();
+                try {
+                    if (binary != null) binary.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Runs on the writer thread only
+        void write(Batch batch) {
+            try {
+                if (batch.lines != null) {
+                    if (text == null) text = openTextLog();
+                    batch.writeTo(text);
+                } else {
+                    if (binary == null) binary = openBinaryLog();
+                    batch.writeTo(binary);
+                    freeBuffers.add(batch.bytes);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        long dropped() {
+            return dropped.get();
+        }
+
+        void drainAndStop() {
+            stopping = true;
+            Thread t = thread;
+            if (t != null) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (dropped.get() > 0) {
+                System.err.println("[Logger] Dropped " + dropped.get() + " coverage batches (coverage.backpressure=drop)");
             }
         }
     }
 
-    public static void resetForNewTestCase() {
-        synchronized (logsThisTestCase) {
-            logsThisTestCase.clear();
-            seenSubconditions.clear();
-            seenLines.clear();
+    static Path outputFile(String base, String extension) {
+        Path dir = Paths.get(System.getProperty("coverage.dir", "."));
+        if (!Boolean.getBoolean("coverage.perProcess")) {
+            return dir.resolve(base + extension);
+        }
+        // RuntimeMXBean name is "<pid>@<host>" on HotSpot and OpenJ9
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        String fork = System.getProperty("coverage.fork");
+        return dir.resolve(base + "-" + (fork == null || fork.isEmpty() ? "" : fork + "-") + pid + extension);
+    }
+
+    private static ByteBuffer binaryHeader() throws IOException {
+        String manifest = System.getProperty("coverage.manifest");
+        byte[] table = manifest == null ? new byte[0] : Files.readAllBytes(Paths.get(manifest));
+        ByteBuffer header = ByteBuffer.allocate(BINARY_MAGIC.length + 1 + 5 + table.length);
+        header.put(BINARY_MAGIC).put((byte) BINARY_VERSION);
+        int length = table.length;
+        while ((length & ~0x7F) != 0) {
+            header.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        header.put((byte) length).put(table);
+        header.flip();
+        return header;
+    }
+
+    /** Child threads get their own recorder in the parent's test context. */
+    private static final class RecorderLocal extends InheritableThreadLocal<ProbeRecorder> {
+        @Override
+        protected ProbeRecorder initialValue() {
+            return new ProbeRecorder(lastStarted);
+        }
+
+        @Override
+        protected ProbeRecorder childValue(ProbeRecorder parent) {
+            return new ProbeRecorder(parent.context);
+        }
+    }
+
+    private static final class ProbeRecorder {
+        // Thread that owns this recorder; set on its first hit (childValue runs on the parent thread)
+        WeakReference<Thread> owner;
+        // Context the owner thread is running in; read and written by the owner only
+        TestContext context;
+        // Context whose first hits are in seen/ids
+        TestContext bound;
+        final ProbeSet seen = new ProbeSet();
+        // First hits in the bound context, in hit order
+        int[] ids = new int[64];
+        int size;
+        // Hit counts in the bound context by probe ID (count only): counts is written by the owner
+        // alone, merged holds what the context has already taken (guarded by this recorder)
+        long[] counts = new long[0];
+        long[] merged = new long[0];
+        int[] countedIds = new int[16];
+        int countedSize;
+
+        ProbeRecorder(TestContext context) {
+            this.context = context;
+        }
+
+        boolean ownerDead() {
+            return owner != null && owner.get() == null;
+        }
+
+        // Slow path: first hit of a probe, or first hit in a different test context
+        void record(int probeId, TestContext target) {
+            TestContext previous = bound;
+            if (previous != null && previous != target) {
+                // A pool thread moving on to another test's task hands over what it has for the
+                // previous one, or rebinding below would discard it. Contexts lock before recorders.
+                synchronized (previous) {
+                    previous.drain(this);
+                }
+            }
+            recordBound(probeId, target);
+        }
+
+        private synchronized void recordBound(int probeId, TestContext target) {
+            if (bound != target) {
+                if (owner == null) {
+                    owner = new WeakReference<>(Thread.currentThread());
+                }
+                seen.clear();
+                size = 0;
+                for (int i = 0; i < countedSize; i++) {
+                    counts[countedIds[i]] = 0;
+                    merged[countedIds[i]] = 0;
+                }
+                countedSize = 0;
+                bound = target;
+                target.recorders.add(this);
+            }
+            if (!seen.add(probeId)) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = probeId;
+        }
+
+        // Slow path of count: as record, plus a counter for the probe in the bound context
+        void recordCounted(int probeId, TestContext target) {
+            record(probeId, target);
+            synchronized (this) {
+                if (probeId >= counts.length) {
+                    int length = Math.max(counts.length * 2, probeId + 1);
+                    counts = Arrays.copyOf(counts, length);
+                    merged = Arrays.copyOf(merged, length);
+                }
+                if (countedSize == countedIds.length) {
+                    countedIds = Arrays.copyOf(countedIds, countedSize * 2);
+                }
+                countedIds[countedSize++] = probeId;
+            }
+        }
+    }
+
+    /**
+     * Per-test dedup bitset indexed by probe ID. Words are kept across test cases and
+     * {@link #clear()} only zeroes the words that were touched, so a reset costs
+     * O(probes hit) instead of O(probes instrumented) and never reallocates.
+     */
+    static final class ProbeSet {
+        private long[] words = new long[16];
+        private int[] touched = new int[16];
+        private int touchedCount;
+
+        boolean get(int id) {
+            int w = id >>> 6;
+            return w < words.length && (words[w] & (1L << id)) != 0;
+        }
+
+        /** Sets the bit and returns true if it was not set before. */
+        boolean add(int id) {
+            int w = id >>> 6;
+            if (w >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, w + 1));
+            }
+            long word = words[w];
+            long mask = 1L << id;
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (word == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = w;
+            }
+            words[w] = word | mask;
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < touchedCount; i++) {
+                words[touched[i]] = 0L;
+            }
+            touchedCount = 0;
+        }
+    }
+
+    private static int legacyKeyId(String key) {
+        synchronized (legacyKeyIds) {
+            Integer keyId = legacyKeyIds.get(key);
+            if (keyId == null) {
+                keyId = legacyKeyIds.size();
+                legacyKeyIds.put(key, keyId);
+            }
+            return keyId;
         }
     }
 
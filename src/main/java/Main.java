@@ -1,43 +1,123 @@
 import soot.*;
 import soot.options.Options;
+import util.InstrumentationCache;
+import util.JarFiles;
+import util.LineOwners;
+import util.LineSpecIndex;
+import util.MethodSplicer;
+import util.ModificationTracker;
+import util.ProbeArrays;
+import util.ProbeOptions;
+import util.ProbeRegistry;
 
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class Main {
 
     static String getFullClassPath(String modulePath, String sootRuntime) {
-        return sootRuntime + ":" +
-                modulePath + "/target/classes:" +
-                modulePath + "/target/test-classes";
+        StringBuilder classpath = new StringBuilder(sootRuntime);
+        // Soot fails on a missing entry once it scans the classpath (e.g. to resolve lambdas)
+        for (String dir : Arrays.asList("/target/classes", "/target/test-classes")) {
+            if (new File(modulePath + dir).isDirectory()) {
+                classpath.append(":").append(modulePath).append(dir);
+            }
+        }
+        return classpath.toString();
     }
 
+    // Discards the progress output of quiet runs
+    private static final PrintStream QUIET = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    static final String JUNIT5_LISTENER_SERVICE = "META-INF/services/org.junit.platform.launcher.TestExecutionListener";
+
     public static void main(String[] args) throws IOException {
         if (args.length < 3) {
-            System.err.println("Usage: java Main <target-project-root> <file-with-lines-to-instrument> <file-with-fields-to-instrument> [mode: jimple|class]");
+            System.err.println("Usage: java Main <target-project-root|input.jar> <file-with-lines-to-instrument> <file-with-fields-to-instrument> [mode: jimple|class|both] [--option=value ...]");
+            System.err.println("Options:");
+            System.err.println("  --tests=instrument|listener   rewrite test classes (default) or leave them alone and use CoverageRunListener / CoverageTestExecutionListener");
+            System.err.println("  --jobs=N                      instrument up to N module directories in parallel child JVMs (default 1: in-process)");
+            System.err.println("  --probes=all|minimal          one EXERCISED probe per line (default), or one per group of lines that always run together, the rest recorded as inferred");
+            System.err.println("  --loop-probes=once|every      probes inside loops call Logger once per method invocation behind a local flag (default), or on every iteration");
+            System.err.println("  --probe-arrays                give each class a static array with a slot per probe; a probe calls Logger only while its slot is clear, and Logger clears the slots when a test starts (tests run one at a time)");
+            System.err.println("  --hit-counts                  probes call Logger.count on every execution; each test's hit count per probe is written as PROBE_COUNT (not with --probe-arrays or --loop-probes=once)");
+            System.err.println("  --threads=N                   Soot threads for the body packs of one directory (default 0: one per core, divided among the --jobs workers)");
+            System.err.println("  --jimple=all|modified         with Jimple output, write every selected class (default) or only the ones the transformers changed");
+            System.err.println("  --sync                        after instrumenting, install the instrumented classes and Logger into target/ (originals backed up)");
+            System.err.println("  --restore                     put back the classes replaced by --sync and exit");
+            System.err.println("  --cache=DIR                   reuse instrumented output of classes whose bytes and line spec are unchanged");
+            System.err.println("  --out=FILE                    with a jar as input, where to write the instrumented jar (default <name>-instrumented.jar); --sync adds Logger and the listeners to it");
+            System.err.println("Or instrument at class-load time: java -javaagent:soot-instrument-jar-with-dependencies.jar=lines=<file-with-lines-to-instrument>[,cache=DIR][,manifest=FILE][,probes=minimal][,loop-probes=every][,probe-arrays][,hit-counts] (see CoverageAgent)");
             System.exit(1);
         }
 
         String rootProject = args[0];
         String fileWithLinesToInstrument = args[1];
         String fileWithFieldsToInstrument = args[2];
-        String mode = (args.length >= 4) ? args[3].toLowerCase() : "class";
+        Map<String, String> options = parseOptions(args);
+        String mode = options.getOrDefault("mode", "class");
 
-        if (!mode.equals("jimple") && !mode.equals("class")) {
-            System.err.println("Invalid mode: " + mode + ". Expected 'jimple' or 'class'.");
+        if (!mode.equals("jimple") && !mode.equals("class") && !mode.equals("both")) {
+            System.err.println("Invalid mode: " + mode + ". Expected 'jimple', 'class' or 'both'.");
             System.exit(1);
         }
 
-        String defaultRuntime = rootProject + "/target/classes";
+        String jimpleScope = options.getOrDefault("jimple", "all");
+        if (!jimpleScope.equals("all") && !jimpleScope.equals("modified")) {
+            System.err.println("Invalid --jimple: " + jimpleScope + ". Expected 'all' or 'modified'.");
+            System.exit(1);
+        }
+        boolean jimpleModifiedOnly = jimpleScope.equals("modified");
+        int threads = 0;
+        int jobs = 1;
+        ProbeOptions probeOptions = null;
+        try {
+            threads = parseIntOption(options, "threads", 0, 0);
+            jobs = parseIntOption(options, "jobs", 1, 1);
+            probeOptions = ProbeOptions.parse(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        String testsMode = options.getOrDefault("tests", "instrument");
+        if (!testsMode.equals("instrument") && !testsMode.equals("listener")) {
+            System.err.println("Invalid --tests: " + testsMode + ". Expected 'instrument' or 'listener'.");
+            System.exit(1);
+        }
+
+        boolean jarInput = rootProject.endsWith(".jar") && Files.isRegularFile(Paths.get(rootProject));
+        String defaultRuntime = jarInput ? ClassSync.runtimeClasses().toString() : rootProject + "/target/classes";
         String sootRuntime = System.getenv().getOrDefault("SOOT_RUNTIME_CLASSES", defaultRuntime);
 
-        int outputFormat = mode.equals("jimple") ? Options.output_format_jimple : Options.output_format_class;
+        if (options.containsKey("worker-module")) {
+            runWorker(options, mode, jimpleModifiedOnly, threads, probeOptions, fileWithLinesToInstrument, sootRuntime);
+            return;
+        }
+
+        if (options.containsKey("restore") && jarInput) {
+            System.err.println("--restore applies to project directories; a jar input is never modified.");
+            System.exit(1);
+        }
+        if (options.containsKey("restore")) {
+            for (File moduleDir : findModules(rootProject)) {
+                int restored = ClassSync.restore(moduleDir.toPath());
+                System.out.println(">> Restored " + restored + " class file(s) in: " + moduleDir.getName());
+            }
+            return;
+        }
 
         System.out.println(">> Instrumenting project at: " + rootProject);
-        System.out.println(">> Mode: " + mode + " (output format: " + (mode.equals("jimple") ? "Jimple" : "Class files") + ")");
+        System.out.println(">> Mode: " + mode + " (output format: " + outputDescription(mode) + ")");
+        System.out.println(">> Tests: " + testsMode);
 
         Map<String, Set<Integer>> linesToInstrument = readLinesFromFile(fileWithLinesToInstrument);
         System.out.println(">> Using file for specific lines to instrument: " + linesToInstrument);
@@ -45,55 +125,362 @@ public class Main {
         Map<String, Set<String>> fieldsToInstrument = readFieldsFromFile(fileWithFieldsToInstrument);
         System.out.println(">> Using file for specific fields to instrument: " + fieldsToInstrument);
 
-        List<File> moduleDirs = Files.list(Paths.get(rootProject))
-                .filter(Files::isDirectory)
-                .map(Path::toFile)
-                .filter(dir -> new File(dir, "pom.xml").exists() && new File(dir, "src").exists())
-                .collect(Collectors.toList());
+        LineSpecIndex lineSpec = new LineSpecIndex(linesToInstrument);
+        ProbeRegistry probes = new ProbeRegistry();
+        InstrumentationCache cache = openCache(options, mode, lineSpec);
+        if (cache != null) {
+            System.out.println(">> Instrumentation cache: " + options.get("cache"));
+            probes.reserveFrom(cache.probeCounter());
+        }
 
-        if (moduleDirs.isEmpty()) {
-            moduleDirs = Collections.singletonList(new File(rootProject));
+        if (jarInput) {
+            Path jar = Paths.get(rootProject).toAbsolutePath();
+            Path output = options.containsKey("out")
+                    ? Paths.get(options.get("out")).toAbsolutePath()
+                    : jar.resolveSibling(jar.getFileName().toString().replaceFirst("\\.jar$", "-instrumented.jar"));
+            instrumentJar(jar, output, mode, jimpleModifiedOnly, threads, probeOptions, options.containsKey("sync"), lineSpec, probes, cache, sootRuntime);
+            probes.releaseReserved();
+            Path manifest = output.resolveSibling(ProbeRegistry.MANIFEST_FILE);
+            probes.writeManifest(manifest);
+            System.out.println(">> Probe manifest (" + probes.size() + " probes) written to: " + manifest);
+            return;
         }
 
+        List<File> moduleDirs = findModules(rootProject);
+        List<String> productClasses = new ArrayList<>();
         for (File moduleDir : moduleDirs) {
-            System.out.println("\n===============================");
-            System.out.println("🔎 Processing module: " + moduleDir.getName());
+            // A previous --sync left instrumented classes in target/; instrument the originals
+            int restored = ClassSync.restore(moduleDir.toPath());
+            if (restored > 0) {
+                System.out.println(">> Restored " + restored + " class file(s) synced by an earlier run in: " + moduleDir.getName());
+            }
+            Path classes = moduleDir.toPath().resolve("target/classes");
+            if (Files.isDirectory(classes)) {
+                productClasses.addAll(listClasses(classes));
+            }
+        }
+        warnUnmatched(lineSpec, productClasses);
+        boolean failed = false;
+
+        if (jobs > 1) {
+            List<WorkerPool.Job> poolJobs = new ArrayList<>();
+            for (File moduleDir : moduleDirs) {
+                String modulePath = moduleDir.getAbsolutePath();
+                poolJobs.add(new WorkerPool.Job(modulePath, "classes"));
+                if (testsMode.equals("listener")) {
+                    registerJUnit5Listener(modulePath);
+                } else {
+                    poolJobs.add(new WorkerPool.Job(modulePath, "test-classes"));
+                }
+            }
+            System.out.println(">> Running " + poolJobs.size() + " jobs on " + jobs + " worker JVMs");
+
+            List<String> baseArgs = new ArrayList<>(Arrays.asList(args));
+            if (threads == 0) {
+                // Each worker runs its own Soot thread pool; together they should not exceed the cores
+                int workers = Math.min(jobs, poolJobs.size());
+                baseArgs.add("--threads=" + Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+            }
+            List<WorkerPool.Result> results = new WorkerPool(jobs, baseArgs).run(poolJobs, probes);
+            WorkerPool.printSummary(results);
+            failed = results.stream().anyMatch(r -> r.exitCode != 0);
+        } else {
+            for (File moduleDir : moduleDirs) {
+                System.out.println("\n===============================");
+                System.out.println("🔎 Processing module: " + moduleDir.getName());
+
+                String modulePath = moduleDir.getAbsolutePath();
+
+                instrumentTarget(modulePath, "classes", mode, jimpleModifiedOnly, threads, probeOptions, lineSpec, probes, cache, sootRuntime);
+
+                if (testsMode.equals("listener")) {
+                    registerJUnit5Listener(modulePath);
+                    continue;
+                }
+
+                instrumentTarget(modulePath, "test-classes", mode, jimpleModifiedOnly, threads, probeOptions, lineSpec, probes, cache, sootRuntime);
+            }
+            probes.releaseReserved();
+        }
 
-            String modulePath = moduleDir.getAbsolutePath();
+        Path manifest = Paths.get(rootProject, ProbeRegistry.MANIFEST_FILE);
+        probes.writeManifest(manifest);
+        System.out.println(">> Probe manifest (" + probes.size() + " probes) written to: " + manifest);
 
+        if (failed) {
+            System.err.println("\n❌ Some jobs failed, see the output above.");
+            System.exit(1);
+        }
+
+        if (options.containsKey("sync")) {
+            Path runtimeClasses = ClassSync.runtimeClasses();
+            for (File moduleDir : moduleDirs) {
+                int synced = ClassSync.sync(moduleDir.toPath(), runtimeClasses);
+                System.out.println(">> Synced " + synced + " class file(s) into: " + moduleDir.getName() + "/target");
+            }
+        }
+        System.out.println("\n😁 All modules processed.");
+    }
+
+    /**
+     * Child JVM of a WorkerPool: one module directory, probe IDs from the shared counter file
+     * (the cache's own counter when a cache is in use).
+     */
+    private static void runWorker(Map<String, String> options, String mode, boolean jimpleModifiedOnly, int threads,
+                                  ProbeOptions probeOptions,
+                                  String fileWithLinesToInstrument, String sootRuntime) throws IOException {
+        LineSpecIndex lineSpec = new LineSpecIndex(readLinesFromFile(fileWithLinesToInstrument));
+        ProbeRegistry probes = new ProbeRegistry();
+        InstrumentationCache cache = openCache(options, mode, lineSpec);
+        probes.reserveFrom(cache != null ? cache.probeCounter() : Paths.get(options.get("probe-counter")));
+
+        instrumentTarget(options.get("worker-module"), options.get("worker-target"), mode, jimpleModifiedOnly, threads, probeOptions, lineSpec, probes, cache, sootRuntime);
+        probes.releaseReserved();
+
+        probes.writeManifest(Paths.get(options.get("probe-manifest")));
+    }
+
+    /** The --cache directory, or null. Settings that change the instrumented output go into the fingerprint. */
+    static InstrumentationCache openCache(Map<String, String> options, String mode,
+                                          LineSpecIndex lineSpec) throws IOException {
+        String dir = options.get("cache");
+        if (dir == null) return null;
+        Path cacheDir = Paths.get(dir).toAbsolutePath();
+        Files.createDirectories(cacheDir);
+        return new InstrumentationCache(cacheDir, "mode=" + mode + "|jimple=" + options.getOrDefault("jimple", "all")
+                + "|" + ProbeOptions.parse(options).fingerprint(), lineSpec);
+    }
+
+    private static String outputDescription(String mode) {
+        switch (mode) {
+            case "jimple": return "Jimple";
+            case "both": return "Class files and Jimple";
+            default: return "Class files";
+        }
+    }
+
+    /**
+     * Instruments target/classes (EXERCISED and SUBCONDITION probes) or target/test-classes
+     * (test start/end logging) of one module. Mode "both" writes class files and Jimple from the
+     * same Soot run.
+     */
+    static void instrumentTarget(String modulePath, String target, String mode, boolean jimpleModifiedOnly, int threads,
+                                 ProbeOptions probeOptions,
+                                 LineSpecIndex lineSpec, ProbeRegistry probes,
+                                 InstrumentationCache cache, String sootRuntime) {
+        instrumentTarget(modulePath, target, mode, jimpleModifiedOnly, threads, probeOptions, lineSpec, probes, cache,
+                sootRuntime, true);
+    }
+
+    /** Without verbose, the progress of Main and Soot (classpath, classes loaded, ...) is not printed. */
+    static void instrumentTarget(String modulePath, String target, String mode, boolean jimpleModifiedOnly, int threads,
+                                 ProbeOptions probeOptions,
+                                 LineSpecIndex lineSpec, ProbeRegistry probes,
+                                 InstrumentationCache cache, String sootRuntime, boolean verbose) {
+        PrintStream out = verbose ? System.out : QUIET;
+        boolean product = target.equals("classes");
+        Map<Integer, String> outputs = new LinkedHashMap<>();
+        if (!mode.equals("jimple")) {
+            outputs.put(Options.output_format_class, product ? "instrumented-classes" : "instrumented-test-classes");
+        }
+        if (!mode.equals("class")) {
+            outputs.put(Options.output_format_jimple, product ? "jimple-out" : "jimple-test-out");
+        }
+
+        if (product) {
+            ProbeArrays probeArrays = probeOptions.probeArrays ? new ProbeArrays() : null;
+            LineOwners lineOwners = new LineOwners(lineSpec);
             List<BodyTransformer> productTransformers = Arrays.asList(
-                    new ExercisedLineTransformer(linesToInstrument),
-                    new ConditionTransformer(linesToInstrument)
+                    new ExercisedLineTransformer(lineSpec, probes, probeOptions, probeArrays, lineOwners),
+                    new ConditionTransformer(lineSpec, probes, probeOptions, probeArrays)
             );
 
             instrumentClasses(
                     modulePath,
                     "target/classes",
-                    mode.equals("jimple") ? "jimple-out" : "instrumented-classes",
+                    outputs,
+                    jimpleModifiedOnly,
+                    threads,
                     productTransformers,
-                    outputFormat,
-                    sootRuntime
+                    lineSpec,
+                    lineOwners,
+                    probes,
+                    probeArrays,
+                    cache,
+                    sootRuntime,
+                    out
             );
-
-            G.reset();
-
+        } else {
             instrumentClasses(
                     modulePath,
                     "target/test-classes",
-                    mode.equals("jimple") ? "jimple-test-out" : "instrumented-test-classes",
+                    outputs,
+                    jimpleModifiedOnly,
+                    threads,
                     Collections.singletonList(new TestCodeTransformer()),
-                    outputFormat,
-                    sootRuntime
+                    null,
+                    null,
+                    probes,
+                    null,
+                    cache,
+                    sootRuntime,
+                    out
             );
+        }
 
-            G.reset();
+        G.reset();
+    }
+
+    /**
+     * Instruments the classes of a jar as product code. The classes the line spec selects are
+     * extracted to a work directory and instrumented there, with the jar itself on the classpath;
+     * the changed ones then go into a copy of the jar in which every other entry is copied as
+     * stored (see {@link JarFiles#rewrite}). With addRuntime, the runtime classes that --sync
+     * installs into target/classes ({@link ClassSync#isRuntimeClass}) are added to the jar too.
+     * Jimple goes to jimple-out next to the output jar.
+     */
+    static void instrumentJar(Path jar, Path output, String mode, boolean jimpleModifiedOnly, int threads,
+                              ProbeOptions probeOptions, boolean addRuntime,
+                              LineSpecIndex lineSpec, ProbeRegistry probes,
+                              InstrumentationCache cache, String sootRuntime) throws IOException {
+        System.out.println(">> Instrumenting jar: " + jar);
+        if (!mode.equals("jimple") && JarFiles.isSigned(jar)) {
+            System.err.println("⚠️ " + jar.getFileName() + " is signed; the signature will not match the instrumented classes.");
+        }
+        Path workDir = Files.createTempDirectory("soot-jar");
+        try {
+            List<String> allClasses = JarFiles.listClasses(jar);
+            warnUnmatched(lineSpec, allClasses);
+            List<String> classNames = allClasses.stream()
+                    .filter(lineSpec::touches)
+                    .collect(Collectors.toList());
+            JarFiles.extractClasses(jar, classNames, workDir.resolve("target/classes"));
+
+            instrumentTarget(workDir.toString(), "classes", mode, jimpleModifiedOnly, threads, probeOptions, lineSpec, probes, cache,
+                    sootRuntime + File.pathSeparator + jar);
+
+            if (!mode.equals("jimple")) {
+                Map<String, byte[]> replacements = new TreeMap<>();
+                collectClassFiles(workDir.resolve("instrumented-classes"), replacements);
+                int instrumented = replacements.size();
+                if (addRuntime) {
+                    try (Stream<Path> files = Files.list(Paths.get(sootRuntime))) {
+                        for (Path file : files.filter(ClassSync::isRuntimeClass).collect(Collectors.toList())) {
+                            replacements.put(file.getFileName().toString(), Files.readAllBytes(file));
+                        }
+                    }
+                }
+                JarFiles.rewrite(jar, output, replacements);
+                System.out.println(">> Wrote " + output + " (" + instrumented + " instrumented class(es)"
+                        + (addRuntime ? ", Logger and the listeners included" : "") + ")");
+            }
+            if (!mode.equals("class")) {
+                Path jimpleDir = output.resolveSibling("jimple-out");
+                deleteRecursively(jimpleDir);
+                Path produced = workDir.resolve("jimple-out");
+                if (Files.isDirectory(produced)) {
+                    Files.move(produced, jimpleDir);
+                    System.out.println(">> Jimple written to: " + jimpleDir);
+                }
+            }
+        } finally {
+            deleteRecursively(workDir);
         }
+    }
 
-        System.out.println("\n😁 All modules processed.");
+    static void collectClassFiles(Path dir, Map<String, byte[]> entries) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList())) {
+                entries.put(dir.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file));
+            }
+        }
     }
 
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /** Maven modules directly under the root (a pom.xml and a src/), or the root itself. */
+    static List<File> findModules(String rootProject) throws IOException {
+        List<File> moduleDirs;
+        try (Stream<Path> dirs = Files.list(Paths.get(rootProject))) {
+            moduleDirs = dirs.filter(Files::isDirectory)
+                    .map(Path::toFile)
+                    .filter(dir -> new File(dir, "pom.xml").exists() && new File(dir, "src").exists())
+                    .collect(Collectors.toList());
+        }
+        return moduleDirs.isEmpty() ? Collections.singletonList(new File(rootProject)) : moduleDirs;
+    }
+
+    /** Positional args after the first three: an optional mode, then --key=value options. */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq == -1) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                options.put("mode", arg.toLowerCase());
+            }
+        }
+        return options;
+    }
+
+    /** An integer option of at least min, or defaultValue when it is absent. */
+    static int parseIntOption(Map<String, String> options, String name, int defaultValue, int min) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min) return parsed;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid --" + name + ": " + value + ". Expected a whole number of at least " + min + ".");
+    }
+
+    /**
+     * Listener mode leaves test classes untouched. JUnit 5 picks CoverageTestExecutionListener up
+     * through ServiceLoader from target/test-classes; JUnit 4 needs the surefire "listener" property.
+     */
+    private static void registerJUnit5Listener(String modulePath) throws IOException {
+        Path testClasses = Paths.get(modulePath, "target/test-classes");
+        if (!Files.isDirectory(testClasses)) {
+            System.err.println("⚠️ Skipping listener registration: " + testClasses + " does not exist.");
+            return;
+        }
+        Path service = testClasses.resolve(JUNIT5_LISTENER_SERVICE);
+        Files.createDirectories(service.getParent());
+        Files.write(service, Collections.singletonList("CoverageTestExecutionListener"));
+        System.out.println(">>> Registered JUnit 5 listener in: " + service);
+        System.out.println(">>> For JUnit 4, set surefire property listener=CoverageRunListener");
+    }
+
+    // A spec path that names no product class, e.g. only part of a file name, is otherwise silently skipped
+    private static void warnUnmatched(LineSpecIndex lineSpec, Collection<String> classNames) {
+        for (String path : lineSpec.unmatchedPaths(classNames)) {
+            System.err.println("⚠️ No class comes from " + path + " in the line spec; a path has to name the whole source file.");
+        }
+    }
+
+    /**
+     * Reads the lines-to-instrument spec: one {@code path/to/File.java:12,15,20-22} per line, a
+     * path repeated on several lines adds up. Paths keep their order in the file. A path has to
+     * name the whole source file (see {@link LineSpecIndex}).
+     */
     static Map<String, Set<Integer>> readLinesFromFile(String fileWithLinesToInstrument) {
-        Map<String, Set<Integer>> linesMap = new HashMap<>();
+        Map<String, Set<Integer>> linesMap = new LinkedHashMap<>();
         try (BufferedReader br = new BufferedReader(new FileReader(fileWithLinesToInstrument))) {
             String line;
             while ((line = br.readLine()) != null) {
@@ -147,21 +534,67 @@ public class Main {
         }
     }
 
+    private static byte[] readClassFile(String dir, String className) {
+        try {
+            return Files.readAllBytes(Paths.get(dir, className.replace('.', '/') + ".class"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Class names of the .class files under a directory. */
+    static List<String> listClasses(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(p -> p.toString().endsWith(".class"))
+                    .map(p -> dir.relativize(p).toString().replace(File.separatorChar, '/'))
+                    .map(p -> p.substring(0, p.length() - ".class".length()).replace('/', '.'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Runs the transformers over the classes of inputSubdir; only those are loaded as application
+     * classes and written to the output directories (by Soot output format, relative to the
+     * module). With a line spec, only classes whose source file it touches are selected, and when
+     * no Jimple is written only their methods that can hold a requested line get Jimple bodies
+     * (see {@link MethodSplicer}). Without one, every class and method is. With
+     * probeArrays, the selected classes get their probe array (see {@link ProbeArrays}).
+     */
     private static void instrumentClasses(
             String modulePath,
             String inputSubdir,
-            String outputSubdir,
+            Map<Integer, String> outputs,
+            boolean jimpleModifiedOnly,
+            int threads,
             List<BodyTransformer> transformers,
-            int outputFormat,
-            String sootRuntime
+            LineSpecIndex lineSpec,
+            LineOwners lineOwners,
+            ProbeRegistry probes,
+            ProbeArrays probeArrays,
+            InstrumentationCache cache,
+            String sootRuntime,
+            PrintStream out
     ) {
         String inputDir = modulePath + "/" + inputSubdir;
-        String outputDir = modulePath + "/" + outputSubdir;
+        Map<Integer, Path> outputDirs = new LinkedHashMap<>();
+        outputs.forEach((format, subdir) -> outputDirs.put(format, Paths.get(modulePath, subdir)));
+        boolean writeClasses = outputDirs.containsKey(Options.output_format_class);
+        boolean writeJimple = outputDirs.containsKey(Options.output_format_jimple);
         String fullClasspath = getFullClassPath(modulePath, sootRuntime);
 
-        System.out.println(">>> Processing: " + inputDir);
-        System.out.println(">>> Output to: " + outputDir);
-        System.out.println(">>> Full classpath: " + fullClasspath);
+        out.println(">>> Processing: " + inputDir);
+        outputDirs.values().forEach(dir -> out.println(">>> Output to: " + dir));
+        out.println(">>> Full classpath: " + fullClasspath);
+
+        // Output of an earlier run (another line spec) must not outlive it, or --sync would install it
+        try {
+            for (Path dir : outputDirs.values()) {
+                deleteRecursively(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
 
         File inputDirFile = new File(inputDir);
         if (!inputDirFile.exists()) {
@@ -169,32 +602,192 @@ public class Main {
             return;
         }
 
+        List<String> classNames;
+        try {
+            List<String> allClasses = listClasses(inputDirFile.toPath());
+            classNames = lineSpec == null
+                    ? allClasses
+                    : allClasses.stream().filter(lineSpec::touches).collect(Collectors.toList());
+            out.println(">>> Selected " + classNames.size() + " of " + allClasses.size() + " classes");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (classNames.isEmpty()) return;
+
+        InstrumentationCache.Plan plan = null;
+        if (cache != null) {
+            String transformerNames = transformers.stream()
+                    .map(t -> t.getClass().getSimpleName())
+                    .collect(Collectors.joining(","));
+            try {
+                plan = cache.restore(inputDirFile.toPath(), classNames, Paths.get(modulePath), outputDirs, transformerNames, probes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            out.println(">>> Cache: " + plan.hits.size() + " hit(s), " + plan.misses.size() + " miss(es)");
+            if (plan.misses.isEmpty()) return;
+            classNames = new ArrayList<>(plan.misses.keySet());
+            Collections.sort(classNames);
+        }
+
         G.reset();
+        G.v().out = out;
         Options.v().set_prepend_classpath(true);
         Options.v().set_soot_classpath(fullClasspath);
         Options.v().set_src_prec(Options.src_prec_only_class);
         Scene.v().loadClassAndSupport("Logger").setLibraryClass();
-        Options.v().set_process_dir(Collections.singletonList(inputDir));
-        Options.v().set_output_dir(outputDir);
-        Options.v().set_output_format(outputFormat);
+        // Selected classes are argument classes; the rest of inputDir is only on the classpath
+        Options.v().classes().addAll(classNames);
+        // Jimple output needs the bodies to stay Jimple through the packs; class files are then written from Baf copies
+        Options.v().set_output_format(writeJimple ? Options.output_format_jimple : Options.output_format_class);
         Options.v().set_whole_program(false);
         Options.v().set_allow_phantom_refs(true);
         Options.v().set_keep_line_number(true);
         Options.v().set_no_bodies_for_excluded(true);
         Options.v().set_include_all(true);
+        // Bodies are transformed in parallel; the transformers keep no state shared between bodies
+        Options.v().set_num_threads(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
 
+        ModificationTracker tracker = new ModificationTracker();
+        PackManager.v().getPack("jtp").add(new Transform("jtp.trackBefore", tracker.before()));
         for (BodyTransformer transformer : transformers) {
             String name = transformer.getClass().getSimpleName();
             PackManager.v().getPack("jtp").add(new Transform("jtp." + name, transformer));
         }
+        PackManager.v().getPack("jtp").add(new Transform("jtp.trackAfter", tracker.after()));
 
         Scene.v().loadNecessaryClasses();
-        System.out.println("=== Classes loaded by Soot ===");
+        out.println("=== Classes loaded by Soot ===");
         Scene.v().getApplicationClasses().stream()
                 .map(SootClass::getName)
-                .forEach(name -> System.out.println("  " + name));
+                .forEach(name -> out.println("  " + name));
+
+        // Any Jimple written must list every method, so pruning is only done when class files are all we write
+        boolean prune = lineSpec != null && writeClasses && !writeJimple;
+        List<String> spliced = new ArrayList<>();
+        if (prune || lineOwners != null) {
+            for (String className : classNames) {
+                byte[] original = readClassFile(inputDir, className);
+                if (lineOwners != null) {
+                    lineOwners.add(className, original);
+                }
+                if (prune && MethodSplicer.pruneMethods(Scene.v().getSootClass(className), original, lineSpec.linesFor(className))) {
+                    spliced.add(className);
+                }
+            }
+        }
+        if (prune) {
+            out.println(">>> Methods outside the line spec keep their bytecode in " + spliced.size() + " class(es)");
+        }
+
+        if (probeArrays != null) {
+            classNames.forEach(className -> ProbeArrays.declare(Scene.v().getSootClass(className)));
+        }
 
         PackManager.v().runPacks();
+        List<String> written = Scene.v().getApplicationClasses().stream()
+                .map(SootClass::getName)
+                .collect(Collectors.toList());
+        Set<String> modified = modifiedClasses(written, classNames, tracker);
+        out.println(">>> Transformers changed " + modified.size() + " of " + written.size() + " classes");
+
+        if (writeClasses) {
+            // Unchanged classes keep their original bytes: they are not written
+            Path classDir = outputDirs.get(Options.output_format_class);
+            writeOnly(modified, written);
+            if (writeJimple) {
+                writeClassFilesFromJimple(classDir);
+            } else {
+                writeOutput(Options.output_format_class, classDir);
+            }
+            writeOnly(new HashSet<>(written), written);
+            try {
+                for (String className : classNames) {
+                    if (!modified.contains(className)) continue;
+                    Path output = classDir.resolve(className.replace('.', '/') + ".class");
+                    if (probeArrays != null) {
+                        Files.write(output, probeArrays.complete(className, Files.readAllBytes(output)));
+                    }
+                    if (spliced.contains(className)) {
+                        Files.write(output, MethodSplicer.splice(readClassFile(inputDir, className), Files.readAllBytes(output)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        if (writeJimple) {
+            if (jimpleModifiedOnly) {
+                writeOnly(modified, written);
+            }
+            writeOutput(Options.output_format_jimple, outputDirs.get(Options.output_format_jimple));
+        }
+
+        if (plan != null) {
+            try {
+                cache.store(plan, Paths.get(modulePath), outputDirs, written, probes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Classes the transformers changed, plus the classes Soot synthesized (for lambdas) for a
+     * changed input class, which the rewritten class refers to.
+     */
+    private static Set<String> modifiedClasses(List<String> applicationClasses, List<String> inputClasses,
+                                               ModificationTracker tracker) {
+        Set<String> modified = applicationClasses.stream()
+                .filter(tracker::isModified)
+                .collect(Collectors.toCollection(HashSet::new));
+        Set<String> inputs = new HashSet<>(inputClasses);
+        for (String className : applicationClasses) {
+            if (inputs.contains(className)) continue;
+            for (String owner : inputClasses) {
+                if (className.startsWith(owner + "$") && modified.contains(owner)) {
+                    modified.add(className);
+                    break;
+                }
+            }
+        }
+        return modified;
+    }
+
+    // writeOutput only writes application classes
+    private static void writeOnly(Set<String> toWrite, List<String> applicationClasses) {
+        for (String className : applicationClasses) {
+            SootClass sootClass = Scene.v().getSootClass(className);
+            if (toWrite.contains(className)) {
+                sootClass.setApplicationClass();
+            } else {
+                sootClass.setLibraryClass();
+            }
+        }
+    }
+
+    private static void writeOutput(int outputFormat, Path outputDir) {
+        Options.v().set_output_format(outputFormat);
+        Options.v().set_output_dir(outputDir.toString());
         PackManager.v().writeOutput();
     }
-}
\ No newline at end of file
+
+    /**
+     * Class files from Baf copies of the transformed Jimple bodies, as the packs would have made
+     * in class mode. The Jimple bodies are put back afterwards for the Jimple output.
+     */
+    private static void writeClassFilesFromJimple(Path outputDir) {
+        Map<SootMethod, Body> jimpleBodies = new HashMap<>();
+        for (SootClass sootClass : Scene.v().getApplicationClasses()) {
+            for (SootMethod method : sootClass.getMethods()) {
+                if (method.isConcrete() && method.hasActiveBody()) {
+                    jimpleBodies.put(method, method.getActiveBody());
+                    method.setActiveBody(PackManager.v().convertJimpleBodyToBaf(method));
+                }
+            }
+        }
+        writeOutput(Options.output_format_class, outputDir);
+        jimpleBodies.forEach(SootMethod::setActiveBody);
+    }
+}
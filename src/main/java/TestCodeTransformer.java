@@ -23,37 +23,25 @@ public class TestCodeTransformer extends BodyTransformer {
 
 
         PatchingChain<Unit> units = body.getUnits();
-        SootMethod logMethod = Scene.v().getMethod("<Logger: void log(java.lang.String)>");
-        SootMethod resetMethod = Scene.v().getMethod("<Logger: void resetForNewTestCase()>");
-        SootMethod flushMethod = Scene.v().getMethod("<Logger: void flushLogs()>");
+        SootMethod startMethod = Scene.v().getMethod("<Logger: void startTest(java.lang.String)>");
+        SootMethod endMethod = Scene.v().getMethod("<Logger: void endTest(java.lang.String)>");
 
-        String startMessage = "=== START TEST: " + method.getSignature() + " ===";
-        String endMessage = "=== END TEST: " + method.getSignature() + " ===";
+        // Same signature shape as Logger.testSignature, used by the listener mode
+        StringConstant testSignature = StringConstant.v(method.getSignature());
 
-        // Inject resetForNewTestCase() and START message at the beginning
+        // Inject startTest() (reset + START message) at the beginning
         Unit first = units.getFirst();
         units.insertBefore(
-                Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(resetMethod.makeRef())),
+                Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(startMethod.makeRef(), testSignature)),
                 first
         );
-        units.insertBefore(
-                Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(logMethod.makeRef(), StringConstant.v(startMessage))),
-                first
-        );
-
 
-        // Inject flushLogs() and END message before every return
+        // Inject endTest() (END message + flushLogs) before every return
         new ArrayList<>(units).stream()
                 .filter(u -> u instanceof ReturnStmt || u instanceof ReturnVoidStmt)
-                .forEach(u -> {
-                    units.insertBefore(
-                            Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(logMethod.makeRef(), StringConstant.v(endMessage))),
-                            u
-                    );
-                    units.insertBefore(
-                            Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(flushMethod.makeRef())),
-                            u
-                    );
-                });
+                .forEach(u -> units.insertBefore(
+                        Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(endMethod.makeRef(), testSignature)),
+                        u
+                ));
     }
 }
\ No newline at end of file
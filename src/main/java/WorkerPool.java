@@ -0,0 +1,145 @@
+import util.ProbeRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs module/directory jobs in parallel, each in its own child JVM, since Soot's global
+ * singletons (G, Scene, PackManager) rule out in-process parallelism. Every child is Main
+ * started with --worker-module/--worker-target. Children reserve probe IDs from a shared counter
+ * file and write a partial manifest; their console output is captured and printed as one block
+ * per job once it finishes, followed by a summary.
+ */
+public class WorkerPool {
+
+    /** One Soot run: the product or test classes of one module. */
+    static class Job {
+        final String modulePath;
+        final String target; // "classes" or "test-classes"
+
+        Job(String modulePath, String target) {
+            this.modulePath = modulePath;
+            this.target = target;
+        }
+
+        String name() {
+            return new File(modulePath).getName() + "/target/" + target;
+        }
+    }
+
+    static class Result {
+        final Job job;
+        final int exitCode;
+        final long millis;
+
+        Result(Job job, int exitCode, long millis) {
+            this.job = job;
+            this.exitCode = exitCode;
+            this.millis = millis;
+        }
+    }
+
+    private final int parallelism;
+    private final List<String> baseArgs;
+    private final Path workDir;
+
+    /**
+     * @param baseArgs the positional args and options of this run, passed on to every child
+     */
+    WorkerPool(int parallelism, List<String> baseArgs) throws IOException {
+        this.parallelism = parallelism;
+        this.baseArgs = baseArgs;
+        this.workDir = Files.createTempDirectory("soot-workers");
+    }
+
+    /** Runs all jobs and merges the children's probe manifests into {@code probes}. */
+    List<Result> run(List<Job> jobs, ProbeRegistry probes) throws IOException {
+        Path counterFile = workDir.resolve("probe-ids");
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            Path log = workDir.resolve("job-" + i + ".log");
+            Path manifest = workDir.resolve("job-" + i + ".manifest");
+            futures.add(executor.submit(() -> runChild(job, log, manifest, counterFile)));
+        }
+        executor.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("⚠️ Job " + jobs.get(i).name() + " could not be run: " + e);
+                results.add(new Result(jobs.get(i), -1, 0));
+            }
+            Path manifest = workDir.resolve("job-" + i + ".manifest");
+            if (Files.exists(manifest)) {
+                probes.merge(ProbeRegistry.readManifest(manifest));
+            }
+        }
+
+        try (Stream<Path> files = Files.list(workDir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDir);
+        return results;
+    }
+
+    private Result runChild(Job job, Path log, Path manifest, Path counterFile) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        // Heap and stack settings (-Xmx, -Xss, ...) apply to every child as well
+        for (String jvmArg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (jvmArg.startsWith("-X")) {
+                command.add(jvmArg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.addAll(baseArgs);
+        command.add("--worker-module=" + job.modulePath);
+        command.add("--worker-target=" + job.target);
+        command.add("--probe-counter=" + counterFile);
+        command.add("--probe-manifest=" + manifest);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        int exitCode = process.waitFor();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // One block per job, so output of concurrent children never interleaves
+        synchronized (System.out) {
+            System.out.println("\n===============================");
+            System.out.println("🔎 [" + job.name() + "] " + (exitCode == 0 ? "done" : "FAILED (exit " + exitCode + ")")
+                    + " in " + millis + " ms");
+            // Children print in the platform charset
+            for (String line : new String(Files.readAllBytes(log), Charset.defaultCharset()).split("\r?\n")) {
+                System.out.println("  " + line);
+            }
+        }
+        return new Result(job, exitCode, millis);
+    }
+
+    static void printSummary(List<Result> results) {
+        System.out.println("\n=== Parallel instrumentation summary ===");
+        for (Result result : results) {
+            System.out.printf("  %-60s %-8s %8d ms%n", result.job.name(), result.exitCode == 0 ? "ok" : "FAILED", result.millis);
+        }
+    }
+}
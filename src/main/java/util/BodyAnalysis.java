@@ -0,0 +1,138 @@
+package util;
+
+import soot.Body;
+import soot.Local;
+import soot.Unit;
+import soot.toolkits.graph.BriefUnitGraph;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.graph.UnitGraph;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Analysis results for one body, shared by the transformers of a pack. Soot applies every
+ * transform of a BodyPack to a body before moving to the next one, so each thread only keeps the
+ * body it is working on. Results are dropped when the unit or trap chain changes, except that
+ * {@link #lineNeutralEdit()} lets a transformer that only inserted untagged statements keep the
+ * line-derived results.
+ */
+public final class BodyAnalysis {
+    private static final ThreadLocal<BodyAnalysis> current = new ThreadLocal<>();
+
+    private final Body body;
+
+    private long linesStamp = -1;
+    private int[] lines;
+    private final Map<LineSpecIndex, int[]> relevantLines = new HashMap<>();
+
+    private long graphStamp = -1;
+    private UnitGraph graph;
+    private ControlFlowUtil.LineIndex lineIndex;
+
+    // Prefix -> next number for a local of that prefix; locals are only ever added
+    private final Map<String, Integer> nextLocal = new HashMap<>();
+
+    private BodyAnalysis(Body body) {
+        this.body = body;
+    }
+
+    public static BodyAnalysis of(Body body) {
+        BodyAnalysis analysis = current.get();
+        if (analysis == null || analysis.body != body) {
+            analysis = new BodyAnalysis(body);
+            current.set(analysis);
+        }
+        return analysis;
+    }
+
+    /** Distinct source lines of the body, ascending. */
+    public int[] lines() {
+        validateLines();
+        if (lines == null) {
+            lines = body.getUnits().stream()
+                    .mapToInt(Unit::getJavaSourceStartLineNumber)
+                    .filter(line -> line > 0)
+                    .sorted()
+                    .distinct()
+                    .toArray();
+        }
+        return lines;
+    }
+
+    /** Spec lines of the body's class that have a body line within +/-1, ascending. */
+    public int[] relevantLines(LineSpecIndex lineSpec, String className) {
+        validateLines();
+        return relevantLines.computeIfAbsent(lineSpec, spec -> LineSpecIndex.match(spec.linesFor(className), lines()));
+    }
+
+    /**
+     * Control flow graph of the body. Without traps there are no exceptional edges, so the
+     * cheaper BriefUnitGraph gives the same graph as ExceptionalUnitGraph.
+     */
+    public UnitGraph graph() {
+        validateGraph();
+        if (graph == null) {
+            graph = body.getTraps().isEmpty() ? new BriefUnitGraph(body) : new ExceptionalUnitGraph(body);
+        }
+        return graph;
+    }
+
+    public ControlFlowUtil.LineIndex lineIndex() {
+        validateGraph();
+        if (lineIndex == null) {
+            lineIndex = new ControlFlowUtil.LineIndex(graph());
+        }
+        return lineIndex;
+    }
+
+    /**
+     * A name for a new local: prefix plus a number above every local of the body with that
+     * prefix. The body's locals are scanned once per prefix, so adding many locals stays linear.
+     */
+    public String newLocalName(String prefix) {
+        Integer next = nextLocal.get(prefix);
+        if (next == null) {
+            next = 1;
+            for (Local local : body.getLocals()) {
+                String name = local.getName();
+                if (name.length() > prefix.length() && name.startsWith(prefix)
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    next = Math.max(next, Integer.parseInt(name.substring(prefix.length())) + 1);
+                }
+            }
+        }
+        nextLocal.put(prefix, next + 1);
+        return prefix + next;
+    }
+
+    /**
+     * Called by a transformer that inserted statements without line numbers (probe calls):
+     * line results stay valid, the graph does not.
+     */
+    public void lineNeutralEdit() {
+        linesStamp = stamp();
+    }
+
+    private void validateLines() {
+        long stamp = stamp();
+        if (stamp != linesStamp) {
+            lines = null;
+            relevantLines.clear();
+            linesStamp = stamp;
+        }
+    }
+
+    private void validateGraph() {
+        long stamp = stamp();
+        if (stamp != graphStamp) {
+            graph = null;
+            lineIndex = null;
+            graphStamp = stamp;
+        }
+    }
+
+    private long stamp() {
+        return body.getUnits().getModificationCount() * 31 + body.getTraps().getModificationCount();
+    }
+}
@@ -1,6 +1,10 @@
 package util;
 
 import soot.*;
+import soot.toolkits.graph.DominatorsFinder;
+import soot.toolkits.graph.MHGDominatorsFinder;
+import soot.toolkits.graph.MHGPostDominatorsFinder;
+import soot.toolkits.graph.StronglyConnectedComponentsFast;
 import soot.toolkits.graph.UnitGraph;
 
 import java.util.*;
@@ -9,45 +13,192 @@ import java.util.*;
 public class ControlFlowUtil {
 
     public static Unit findBestStmtUsingCPG(UnitGraph cfg, Map<Integer, List<Unit>> lineToStmts, int targetLine) {
+        return findBestStmtUsingCPG(new LineIndex(cfg), lineToStmts, targetLine);
+    }
+
+    /**
+     * Exact line match first; otherwise the first reachable Unit (in chain order) on a later
+     * line, then the last reachable Unit on an earlier line. Build the {@link LineIndex} once per
+     * body when placing several lines.
+     */
+    public static Unit findBestStmtUsingCPG(LineIndex index, Map<Integer, List<Unit>> lineToStmts, int targetLine) {
         // 1. Try exact match first
         if (lineToStmts.containsKey(targetLine)) {
             return lineToStmts.get(targetLine).get(0);
         }
 
-        // 2. Build list of all Units with line numbers
-        List<Unit> units = new ArrayList<>(cfg.getBody().getUnits());
-        Map<Unit, Integer> unitToLine = new HashMap<>();
-        for (Unit unit : units) {
-            int line = unit.getJavaSourceStartLineNumber();
-            if (line > 0) {
-                unitToLine.put(unit, line);
-            }
+        // 2. Nearest reachable forward Unit (prefer forward first)
+        Unit forward = index.firstAfter(targetLine);
+        if (forward != null) {
+            return forward;
         }
 
-        // 3. Find nearest reachable forward Unit (prefer forward first)
-        for (Unit unit : units) {
-            int line = unitToLine.getOrDefault(unit, -1);
-            if (line > 0 && line > targetLine) {
-                if (isReachable(cfg, unit)) {
-                    return unit;
+        // 3. If no forward reachable, the nearest backward reachable Unit, or null
+        return index.lastBefore(targetLine);
+    }
+
+    /**
+     * Reachable Units of a body that carry a line number, sorted by line. Prefix/suffix tables
+     * over chain positions answer "first Unit after line L" and "last Unit before line L" with a
+     * binary search, so the graph is walked once per body instead of once per candidate.
+     */
+    public static final class LineIndex {
+        private final Unit[] units;           // reachable Units in chain order
+        private final int[] lines;            // line numbers, ascending
+        private final int[] positions;        // chain position of the Unit at lines[i]
+        private final int[] minPositionFrom;  // min(positions[i..])
+        private final int[] maxPositionUpTo;  // max(positions[..i])
+
+        public LineIndex(UnitGraph cfg) {
+            Set<Unit> reachable = reachableUnits(cfg);
+            List<Unit> lineUnits = new ArrayList<>();
+            for (Unit unit : cfg.getBody().getUnits()) {
+                if (unit.getJavaSourceStartLineNumber() > 0 && reachable.contains(unit)) {
+                    lineUnits.add(unit);
                 }
             }
+            units = lineUnits.toArray(new Unit[0]);
+
+            int n = units.length;
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> units[i].getJavaSourceStartLineNumber()));
+
+            lines = new int[n];
+            positions = new int[n];
+            for (int i = 0; i < n; i++) {
+                positions[i] = order[i];
+                lines[i] = units[order[i]].getJavaSourceStartLineNumber();
+            }
+            minPositionFrom = new int[n];
+            maxPositionUpTo = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                minPositionFrom[i] = i == n - 1 ? positions[i] : Math.min(positions[i], minPositionFrom[i + 1]);
+            }
+            for (int i = 0; i < n; i++) {
+                maxPositionUpTo[i] = i == 0 ? positions[i] : Math.max(positions[i], maxPositionUpTo[i - 1]);
+            }
+        }
+
+        /** First reachable Unit in chain order whose line is greater than {@code line}. */
+        public Unit firstAfter(int line) {
+            int from = upperBound(lines, line);
+            return from < lines.length ? units[minPositionFrom[from]] : null;
         }
 
-        // 4. If no forward reachable, try nearest backward reachable Unit
-        ListIterator<Unit> reverseIter = units.listIterator(units.size());
-        while (reverseIter.hasPrevious()) {
-            Unit unit = reverseIter.previous();
-            int line = unitToLine.getOrDefault(unit, -1);
-            if (line > 0 && line < targetLine) {
-                if (isReachable(cfg, unit)) {
-                    return unit;
+        /** Last reachable Unit in chain order whose line is less than {@code line}. */
+        public Unit lastBefore(int line) {
+            int to = lowerBound(lines, line) - 1;
+            return to >= 0 ? units[maxPositionUpTo[to]] : null;
+        }
+
+        private static int lowerBound(int[] sorted, int key) {
+            int low = 0, high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] < key) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        private static int upperBound(int[] sorted, int key) {
+            return lowerBound(sorted, key + 1);
+        }
+    }
+
+    /** All Units reachable from the heads of the graph, in one traversal. */
+    public static Set<Unit> reachableUnits(UnitGraph cfg) {
+        Set<Unit> visited = new HashSet<>();
+        Deque<Unit> worklist = new ArrayDeque<>(cfg.getHeads());
+        while (!worklist.isEmpty()) {
+            Unit current = worklist.poll();
+            if (visited.add(current)) {
+                worklist.addAll(cfg.getSuccsOf(current));
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Splits units into groups that always run together. Two units are in one group when the
+     * earlier dominates the later and the later post-dominates the earlier. A hit on the last unit
+     * of a group then implies that every unit of the group ran, unless an exception left the body
+     * in between. Units that cannot reach an exit of the body stay in a group of their own.
+     * Groups are in chain order of their first unit, and each group is ordered by dominance.
+     */
+    public static List<List<Unit>> controlEquivalentGroups(UnitGraph cfg, Collection<Unit> units) {
+        Map<Unit, Integer> position = new HashMap<>();
+        int i = 0;
+        for (Unit unit : cfg.getBody().getUnits()) {
+            position.put(unit, i++);
+        }
+        List<Unit> ordered = new ArrayList<>(new LinkedHashSet<>(units));
+        ordered.sort(Comparator.comparing(position::get));
+
+        List<List<Unit>> groups = new ArrayList<>();
+        if (ordered.size() < 2) {
+            ordered.forEach(unit -> groups.add(new ArrayList<>(Collections.singletonList(unit))));
+            return groups;
+        }
+
+        DominatorsFinder<Unit> dominators = new MHGDominatorsFinder<>(cfg);
+        DominatorsFinder<Unit> postDominators = new MHGPostDominatorsFinder<>(cfg);
+        Set<Unit> reachingExit = unitsReachingExit(cfg);
+        for (Unit unit : ordered) {
+            List<Unit> group = null;
+            if (reachingExit.contains(unit)) {
+                for (List<Unit> candidate : groups) {
+                    Unit other = candidate.get(0);
+                    if (reachingExit.contains(other)
+                            && ((dominators.isDominatedBy(unit, other) && postDominators.isDominatedBy(other, unit))
+                            || (dominators.isDominatedBy(other, unit) && postDominators.isDominatedBy(unit, other)))) {
+                        group = candidate;
+                        break;
+                    }
                 }
             }
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(unit);
+        }
+        // Within a group dominance is a total order (a loop can put a dominated unit first in the chain)
+        for (List<Unit> group : groups) {
+            group.sort((a, b) -> a == b ? 0 : dominators.isDominatedBy(b, a) ? -1 : 1);
+        }
+        return groups;
+    }
+
+    /**
+     * Units that can run more than once per invocation: the members of every cycle of the graph
+     * (strongly connected components with more than one unit, and units that branch to
+     * themselves). This covers the natural loops javac emits and irreducible ones alike.
+     */
+    public static Set<Unit> unitsInLoops(UnitGraph cfg) {
+        Set<Unit> inLoops = new HashSet<>();
+        for (List<Unit> component : new StronglyConnectedComponentsFast<>(cfg).getTrueComponents()) {
+            inLoops.addAll(component);
+        }
+        for (Unit unit : cfg) {
+            if (cfg.getSuccsOf(unit).contains(unit)) {
+                inLoops.add(unit);
+            }
         }
+        return inLoops;
+    }
 
-        // 5. Give up
-        return null;
+    private static Set<Unit> unitsReachingExit(UnitGraph cfg) {
+        Set<Unit> visited = new HashSet<>();
+        Deque<Unit> worklist = new ArrayDeque<>(cfg.getTails());
+        while (!worklist.isEmpty()) {
+            Unit current = worklist.poll();
+            if (visited.add(current)) {
+                worklist.addAll(cfg.getPredsOf(current));
+            }
+        }
+        return visited;
     }
 
     public static boolean isReachable(UnitGraph cfg, Unit target) {
@@ -0,0 +1,276 @@
+package util;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Streams a binary coverage log ({@code -Dcoverage.format=binary}) and builds the same
+ * location -> tests JSON that script/parser.py builds from the text coverage.log, including the
+ * per-test "hits" of logs written with hit counts (Main --hit-counts).
+ * The format constants mirror the ones in Logger.
+ */
+public class CoverageLogReader {
+    private static final byte[] MAGIC = {'S', 'C', 'O', 'V'};
+    private static final int VERSION = 1;
+    private static final int RECORD_TEST = 1;
+    private static final int RECORD_COUNTS = 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    static class Location {
+        final Set<String> exercised = new TreeSet<>();
+        final Map<String, Set<String>> subconditions = new LinkedHashMap<>();
+        final Map<String, Long> exercisedHits = new TreeMap<>();
+        final Map<String, Map<String, Long>> subconditionHits = new HashMap<>();
+    }
+
+    private final Map<String, Location> locations = new LinkedHashMap<>();
+    private ProbeRegistry probes;
+
+    /**
+     * @param manifest probe manifest to resolve IDs with; may be null when the log embeds one
+     */
+    public CoverageLogReader(ProbeRegistry manifest) {
+        this.probes = manifest;
+    }
+
+    public void read(Path binaryLog) throws IOException {
+        try (FileChannel ch = FileChannel.open(binaryLog, StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), BUFFER_SIZE))) {
+            byte[] table = readHeader(in, binaryLog);
+            if (probes == null) {
+                if (table.length == 0) {
+                    throw new IOException("No probe manifest embedded in " + binaryLog + "; pass one explicitly");
+                }
+                probes = ProbeRegistry.parseManifest(Arrays.asList(new String(table, StandardCharsets.UTF_8).split("\n")));
+            }
+
+            int tag;
+            String testCase = null;
+            while ((tag = in.read()) != -1) {
+                if (tag == RECORD_COUNTS && testCase != null) {
+                    readCounts(in, testCase);
+                    continue;
+                }
+                if (tag != RECORD_TEST) {
+                    throw new IOException("Unknown record type " + tag + " in " + binaryLog);
+                }
+                byte[] name = new byte[readVarint(in)];
+                in.readFully(name);
+                testCase = testCaseName(new String(name, StandardCharsets.UTF_8));
+                int count = readVarint(in);
+                int probeId = 0;
+                for (int i = 0; i < count; i++) {
+                    probeId += readVarint(in);
+                    ProbeRegistry.Probe probe = probes.get(probeId);
+                    if (probe != null) {
+                        record(probe, testCase);
+                        for (ProbeRegistry.Probe inferred : probes.inferredFrom(probeId)) {
+                            record(inferred, testCase);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Hit counts of the test record before it; inferred lines ran as often as their probe
+    private void readCounts(DataInputStream in, String testCase) throws IOException {
+        int count = readVarint(in);
+        int probeId = 0;
+        for (int i = 0; i < count; i++) {
+            probeId += readVarint(in);
+            long hits = readVarlong(in);
+            ProbeRegistry.Probe probe = probes.get(probeId);
+            if (probe != null) {
+                recordHits(probe, testCase, hits);
+                for (ProbeRegistry.Probe inferred : probes.inferredFrom(probeId)) {
+                    recordHits(inferred, testCase, hits);
+                }
+            }
+        }
+    }
+
+    /** Checks magic and version and returns the embedded probe table (possibly empty). */
+    static byte[] readHeader(DataInputStream in, Path binaryLog) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a binary coverage log: " + binaryLog);
+        }
+        byte[] table = new byte[readVarint(in)];
+        in.readFully(table);
+        return table;
+    }
+
+    /** Header bytes as Logger writes them. */
+    static byte[] header(byte[] table) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAGIC.length + 6 + table.length);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        int length = table.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(table, 0, table.length);
+        return out.toByteArray();
+    }
+
+    private void record(ProbeRegistry.Probe probe, String testCase) {
+        Location location = locations.computeIfAbsent(probe.file + ":" + probe.line, k -> new Location());
+        if (ProbeRegistry.EXERCISED.equals(probe.kind) || ProbeRegistry.EXERCISED_INFERRED.equals(probe.kind)) {
+            location.exercised.add(testCase);
+        } else if (ProbeRegistry.SUBCONDITION_CHECKED.equals(probe.kind)) {
+            location.subconditions.computeIfAbsent(String.valueOf(probe.index), k -> new TreeSet<>()).add(testCase);
+        }
+    }
+
+    private void recordHits(ProbeRegistry.Probe probe, String testCase, long hits) {
+        Location location = locations.computeIfAbsent(probe.file + ":" + probe.line, k -> new Location());
+        if (ProbeRegistry.EXERCISED.equals(probe.kind) || ProbeRegistry.EXERCISED_INFERRED.equals(probe.kind)) {
+            location.exercisedHits.merge(testCase, hits, Long::sum);
+        } else if (ProbeRegistry.SUBCONDITION_CHECKED.equals(probe.kind)) {
+            location.subconditionHits.computeIfAbsent(String.valueOf(probe.index), k -> new TreeMap<>())
+                    .merge(testCase, hits, Long::sum);
+        }
+    }
+
+    // Same as parser.py: "<demo.FooTest: void testBar()>" -> "void testBar()"
+    static String testCaseName(String signature) {
+        int start = signature.indexOf('<');
+        int end = signature.indexOf('>');
+        if (start == -1 || end == -1) {
+            return signature;
+        }
+        String fullTestId = signature.substring(start + 1, end);
+        return fullTestId.substring(fullTestId.lastIndexOf(':') + 1).trim();
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    Map<String, Location> getLocations() {
+        return locations;
+    }
+
+    // Same layout as json.dump(..., indent=2) in parser.py
+    public void writeJson(Writer out) throws IOException {
+        out.write("{");
+        String sep = "\n";
+        for (Map.Entry<String, Location> entry : locations.entrySet()) {
+            Location location = entry.getValue();
+            out.write(sep + "  " + quote(entry.getKey()) + ": {\n");
+            out.write("    \"exercised\": ");
+            writeTestCases(out, location.exercised, location.exercisedHits, "    ");
+            out.write(",\n    \"subconditions\": ");
+            if (location.subconditions.isEmpty()) {
+                out.write("{}");
+            } else {
+                out.write("{");
+                String subSep = "\n";
+                for (Map.Entry<String, Set<String>> sub : location.subconditions.entrySet()) {
+                    out.write(subSep + "      " + quote(sub.getKey()) + ": ");
+                    writeTestCases(out, sub.getValue(),
+                            location.subconditionHits.getOrDefault(sub.getKey(), Collections.emptyMap()), "      ");
+                    subSep = ",\n";
+                }
+                out.write("\n    }");
+            }
+            out.write("\n  }");
+            sep = ",\n";
+        }
+        out.write(locations.isEmpty() ? "}" : "\n}");
+    }
+
+    private static void writeTestCases(Writer out, Set<String> testCases, Map<String, Long> hits,
+                                       String indent) throws IOException {
+        out.write("{\n" + indent + "  \"cnt\": " + testCases.size() + ",\n" + indent + "  \"testcases\": ");
+        if (testCases.isEmpty()) {
+            out.write("[]");
+        } else {
+            out.write("[");
+            String sep = "\n";
+            for (String testCase : testCases) {
+                out.write(sep + indent + "    " + quote(testCase));
+                sep = ",\n";
+            }
+            out.write("\n" + indent + "  ]");
+        }
+        if (!hits.isEmpty()) {
+            out.write(",\n" + indent + "  \"hits\": {");
+            String sep = "\n";
+            for (Map.Entry<String, Long> entry : hits.entrySet()) {
+                out.write(sep + indent + "    " + quote(entry.getKey()) + ": " + entry.getValue());
+                sep = ",\n";
+            }
+            out.write("\n" + indent + "  }");
+        }
+        out.write("\n" + indent + "}");
+    }
+
+    // Escapes like Python's json module with ensure_ascii=True
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c > 0x7F) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java util.CoverageLogReader <coverage.bin> <output.json> [probes.manifest]");
+            System.exit(1);
+        }
+        ProbeRegistry manifest = args.length >= 3 ? ProbeRegistry.readManifest(Paths.get(args[2])) : null;
+        CoverageLogReader reader = new CoverageLogReader(manifest);
+        reader.read(Paths.get(args[0]));
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), StandardCharsets.UTF_8))) {
+            reader.writeJson(out);
+        }
+        System.out.println(">> Wrote coverage for " + reader.locations.size() + " locations to " + args[1]);
+    }
+}
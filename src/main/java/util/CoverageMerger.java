@@ -0,0 +1,104 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Combines the per-process coverage files that Logger writes with -Dcoverage.perProcess=true
+ * (coverage-*.log / coverage-*.bin) into a single coverage.log / coverage.bin, which
+ * script/parser.py and {@link CoverageLogReader} then process as usual.
+ * Every fork writes whole test records, so merging is a byte-level concatenation.
+ */
+public class CoverageMerger {
+
+    static List<Path> findParts(Path dir, String extension) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith("coverage-") && name.endsWith(extension);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    public static void mergeText(List<Path> parts, Path output) throws IOException {
+        try (FileChannel out = FileChannel.open(output,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path part : parts) {
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    transferAll(in, 0, out);
+                }
+            }
+        }
+    }
+
+    /** Keeps one header (preferring one with an embedded probe table) and appends every part's records. */
+    public static void mergeBinary(List<Path> parts, Path output) throws IOException {
+        byte[] table = new byte[0];
+        long[] recordOffsets = new long[parts.size()];
+        for (int i = 0; i < parts.size(); i++) {
+            byte[] partTable;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(parts.get(i))))) {
+                partTable = CoverageLogReader.readHeader(in, parts.get(i));
+            }
+            if (table.length > 0 && partTable.length > 0 && !Arrays.equals(table, partTable)) {
+                throw new IOException("Probe manifest in " + parts.get(i) + " differs from the other parts");
+            }
+            if (table.length == 0) {
+                table = partTable;
+            }
+            recordOffsets[i] = CoverageLogReader.header(partTable).length;
+        }
+
+        try (FileChannel out = FileChannel.open(output,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.wrap(CoverageLogReader.header(table));
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                try (FileChannel in = FileChannel.open(parts.get(i), StandardOpenOption.READ)) {
+                    transferAll(in, recordOffsets[i], out);
+                }
+            }
+        }
+    }
+
+    private static void transferAll(FileChannel in, long position, FileChannel out) throws IOException {
+        long size = in.size();
+        while (position < size) {
+            position += in.transferTo(position, size - position, out);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java util.CoverageMerger <coverage-dir> [output-dir]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        Path outputDir = args.length >= 2 ? Paths.get(args[1]) : dir;
+        Files.createDirectories(outputDir);
+
+        List<Path> textParts = findParts(dir, ".log");
+        if (!textParts.isEmpty()) {
+            mergeText(textParts, outputDir.resolve("coverage.log"));
+            System.out.println(">> Merged " + textParts.size() + " text logs into " + outputDir.resolve("coverage.log"));
+        }
+        List<Path> binaryParts = findParts(dir, ".bin");
+        if (!binaryParts.isEmpty()) {
+            mergeBinary(binaryParts, outputDir.resolve("coverage.bin"));
+            System.out.println(">> Merged " + binaryParts.size() + " binary logs into " + outputDir.resolve("coverage.bin"));
+        }
+        if (textParts.isEmpty() && binaryParts.isEmpty()) {
+            System.err.println("⚠️ No per-process coverage files found in " + dir);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package util;
+
+import soot.options.Options;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persistent cache of instrumented output, keyed by a hash of the original class file, the
+ * slice of the line spec that applies to it and the instrumentation settings. Classes whose key
+ * is cached are copied to the output directory and kept out of Soot; their probes are
+ * re-registered under the IDs baked into the cached bytes. A class that misses gets back the
+ * IDs it had when it was last instrumented (kept per class under ids/), and only probes beyond
+ * those take fresh IDs, reserved from a counter file in the cache; so IDs never collide with
+ * the ones held by any cached class, and the ID space only grows with new probe sites.
+ * Classes Soot synthesizes for a class (lambda bodies such as {@code Outer$run__1}) are cached
+ * with it, probes included.
+ */
+public class InstrumentationCache {
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path dir;
+    private final String fingerprint;
+    private final LineSpecIndex lineSpec;
+
+    /** Classes of one input directory, split into cache hits and misses (class name -> key). */
+    public static class Plan {
+        public final Set<String> hits = new HashSet<>();
+        public final Map<String, String> misses = new HashMap<>();
+        final Set<String> inputClasses = new HashSet<>();
+    }
+
+    /**
+     * @param fingerprint everything besides class bytes and line spec that changes the output
+     */
+    public InstrumentationCache(Path dir, String fingerprint, LineSpecIndex lineSpec) {
+        this.dir = dir;
+        this.fingerprint = "v" + FORMAT_VERSION + "|" + fingerprint;
+        this.lineSpec = lineSpec;
+    }
+
+    public Path probeCounter() {
+        return dir.resolve("probe-ids");
+    }
+
+    /**
+     * Copies cached output for unchanged classes and registers their probes. {@code outputs} maps
+     * each Soot output format to its directory; entries store files relative to moduleDir.
+     */
+    public Plan restore(Path inputDir, Collection<String> classNames, Path moduleDir, Map<Integer, Path> outputs,
+                        String transformers, ProbeRegistry probes) throws IOException {
+        Plan plan = new Plan();
+        plan.inputClasses.addAll(classNames);
+        String outputKey = outputKey(moduleDir, outputs);
+        for (String className : classNames) {
+            Path classFile = inputDir.resolve(className.replace('.', '/') + ".class");
+            String key = key(className, Files.readAllBytes(classFile), transformers, outputKey);
+            Path entry = entryPath(key);
+            if (!Files.exists(entry)) {
+                plan.misses.put(className, key);
+                probes.reuseIds(className, claimIds(className));
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+                int probeCount = in.readInt();
+                List<ProbeRegistry.Probe> cached = new ArrayList<>(probeCount);
+                for (int i = 0; i < probeCount; i++) {
+                    cached.add(new ProbeRegistry.Probe(in.readInt(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt()));
+                }
+                int fileCount = in.readInt();
+                if (fileCount == 0) {
+                    for (Map.Entry<Integer, Path> output : outputs.entrySet()) {
+                        Files.deleteIfExists(output.getValue().resolve(outputFile(className, output.getKey())));
+                    }
+                }
+                for (int i = 0; i < fileCount; i++) {
+                    Path target = moduleDir.resolve(in.readUTF());
+                    byte[] output = new byte[in.readInt()];
+                    in.readFully(output);
+                    Files.createDirectories(target.getParent());
+                    Files.write(target, output);
+                }
+                probes.registerCached(className, cached);
+            }
+            plan.hits.add(className);
+        }
+        return plan;
+    }
+
+    /**
+     * Stores what Soot wrote for the classes that missed the cache: every output file of the class
+     * and of the classes synthesized for it that exists in one of the output directories.
+     */
+    public void store(Plan plan, Path moduleDir, Map<Integer, Path> outputs, Collection<String> writtenClasses,
+                      ProbeRegistry probes) throws IOException {
+        for (Map.Entry<String, String> miss : plan.misses.entrySet()) {
+            String className = miss.getKey();
+            List<String> classes = new ArrayList<>();
+            classes.add(className);
+            for (String written : writtenClasses) {
+                if (!plan.inputClasses.contains(written) && written.startsWith(className + "$")) {
+                    classes.add(written);
+                }
+            }
+            List<ProbeRegistry.Probe> classProbes = new ArrayList<>();
+            for (String name : classes) {
+                classProbes.addAll(probes.probesOf(name));
+            }
+            List<Path> files = new ArrayList<>();
+            for (Map.Entry<Integer, Path> output : outputs.entrySet()) {
+                for (String name : classes) {
+                    Path file = output.getValue().resolve(outputFile(name, output.getKey()));
+                    if (Files.exists(file)) files.add(file);
+                }
+            }
+            // An entry without files records a class the transformers left unchanged
+
+            Path entry = entryPath(miss.getValue());
+            Files.createDirectories(entry.getParent());
+            Path tmp = Files.createTempFile(entry.getParent(), "entry", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(classProbes.size());
+                for (ProbeRegistry.Probe probe : classProbes) {
+                    out.writeInt(probe.id);
+                    out.writeUTF(probe.kind);
+                    out.writeUTF(probe.file);
+                    out.writeInt(probe.line);
+                    out.writeInt(probe.index);
+                }
+                out.writeInt(files.size());
+                for (Path file : files) {
+                    byte[] bytes = Files.readAllBytes(file);
+                    out.writeUTF(moduleDir.relativize(file).toString().replace(File.separatorChar, '/'));
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            // Parallel workers may store the same entry; the rename keeps readers from seeing partial files
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            Set<Integer> ids = new TreeSet<>(probes.unusedReusableIds(className));
+            classProbes.forEach(probe -> ids.add(probe.id));
+            writeIds(className, ids);
+        }
+    }
+
+    /**
+     * The IDs className had when it was last instrumented. The record is taken out of the cache,
+     * so two runs (or two modules with a class of the same name) never get the same IDs.
+     */
+    private List<Integer> claimIds(String className) throws IOException {
+        Path record = idsPath(className);
+        Path claimed = record.resolveSibling(record.getFileName() + "." + UUID.randomUUID());
+        try {
+            Files.move(record, claimed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(claimed)))) {
+            int count = in.readInt();
+            List<Integer> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(in.readInt());
+            }
+            return ids;
+        } finally {
+            Files.delete(claimed);
+        }
+    }
+
+    private void writeIds(String className, Set<Integer> ids) throws IOException {
+        Path record = idsPath(className);
+        Files.createDirectories(record.getParent());
+        Path tmp = Files.createTempFile(record.getParent(), "ids", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(ids.size());
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+        }
+        Files.move(tmp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path idsPath(String className) {
+        return dir.resolve("ids").resolve(className + ".ids");
+    }
+
+    // Formats and directories, so a class-only entry is never restored for a run that also wants Jimple
+    private static String outputKey(Path moduleDir, Map<Integer, Path> outputs) {
+        StringJoiner key = new StringJoiner(",");
+        new TreeMap<>(outputs).forEach((format, dir) -> key.add(format + "=" + moduleDir.relativize(dir)));
+        return key.toString();
+    }
+
+    private String key(String className, byte[] classBytes, String transformers, String outputKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String header = fingerprint + "|" + transformers + "|" + outputKey + "|" + className + "|" + Arrays.toString(lineSpec.linesFor(className));
+            digest.update(header.getBytes(StandardCharsets.UTF_8));
+            digest.update(classBytes);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path entryPath(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + ".entry");
+    }
+
+    // Where Soot writes a class in the given format
+    private static String outputFile(String className, int outputFormat) {
+        return outputFormat == Options.output_format_jimple
+                ? className + ".jimple"
+                : className.replace('.', '/') + ".class";
+    }
+}
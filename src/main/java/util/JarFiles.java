@@ -0,0 +1,266 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Jar input and output without unpacking the whole archive. {@link #rewrite} copies the entries
+ * it does not replace as stored (local header, compressed data and data descriptor, via
+ * {@link FileChannel#transferTo}), so only the replaced classes are deflated again.
+ * Zip64 archives are not supported.
+ */
+public class JarFiles {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int UTF8_FLAG = 0x800;
+    // 1980-01-01 00:00 in MS-DOS date format
+    private static final int DOS_EPOCH_DATE = (1 << 5) | 1;
+
+    /** Class names of the .class entries of a jar. */
+    public static List<String> listClasses(Path jar) throws IOException {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            return zip.stream()
+                    .map(ZipEntry::getName)
+                    .filter(name -> name.endsWith(".class") && !name.startsWith("META-INF/"))
+                    .map(name -> name.substring(0, name.length() - ".class".length()).replace('/', '.'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** Writes the given classes of a jar as class files under dir. */
+    public static void extractClasses(Path jar, Collection<String> classNames, Path dir) throws IOException {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (String className : classNames) {
+                String name = className.replace('.', '/') + ".class";
+                ZipEntry entry = zip.getEntry(name);
+                if (entry == null) throw new NoSuchFileException(jar + "!/" + name);
+                Path file = dir.resolve(name);
+                Files.createDirectories(file.getParent());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    /** True if the jar is signed; replacing classes invalidates the signature. */
+    public static boolean isSigned(Path jar) throws IOException {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            return zip.stream().map(ZipEntry::getName)
+                    .anyMatch(name -> name.startsWith("META-INF/") && name.endsWith(".SF"));
+        }
+    }
+
+    /**
+     * Writes output as a copy of input with the entries named in replacements (e.g. "a/B.class")
+     * replaced, and the ones input does not have appended. Output may be input: the new jar is
+     * written next to it and moved into place. Returns the number of replaced entries.
+     */
+    public static int rewrite(Path input, Path output, Map<String, byte[]> replacements) throws IOException {
+        Path target = output.toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        int replaced = 0;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CentralDirectory directory = readCentralDirectory(in);
+            List<Entry> entries = new ArrayList<>(directory.entries);
+            entries.sort(Comparator.comparingLong(entry -> entry.localOffset));
+            Map<String, Entry> byName = new HashMap<>();
+            entries.forEach(entry -> byName.put(entry.name, entry));
+
+            // Anything before the first entry (e.g. a launcher script) stays where it is
+            long firstOffset = entries.isEmpty() ? directory.offset : entries.get(0).localOffset;
+            transfer(in, 0, firstOffset, out);
+
+            ByteArrayOutputStream central = new ByteArrayOutputStream();
+            Map<String, byte[]> pending = new LinkedHashMap<>(replacements);
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                long end = i + 1 < entries.size() ? entries.get(i + 1).localOffset : directory.offset;
+                long offset = out.position();
+                byte[] data = pending.remove(entry.name);
+                if (data == null) {
+                    transfer(in, entry.localOffset, end - entry.localOffset, out);
+                    ByteBuffer record = ByteBuffer.wrap(entry.record.clone()).order(ByteOrder.LITTLE_ENDIAN);
+                    record.putInt(42, (int) checkOffset(offset));
+                    central.write(record.array());
+                } else {
+                    writeEntry(out, central, entry.name, data, entry);
+                    replaced++;
+                }
+            }
+            // New classes (e.g. synthesized for lambdas) take their timestamp from their outer class
+            for (Map.Entry<String, byte[]> added : pending.entrySet()) {
+                String name = added.getKey();
+                int nested = name.indexOf('$');
+                Entry owner = nested == -1 ? null : byName.get(name.substring(0, nested) + ".class");
+                writeEntry(out, central, name, added.getValue(), owner);
+            }
+
+            int count = entries.size() + pending.size();
+            if (count >= 0xFFFF) throw new IOException("Too many entries for a jar without Zip64: " + count);
+            long centralOffset = checkOffset(out.position());
+            write(out, ByteBuffer.wrap(central.toByteArray()));
+            ByteBuffer end = ByteBuffer.allocate(END_SIZE + directory.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) count).putShort((short) count)
+                    .putInt(central.size()).putInt((int) centralOffset)
+                    .putShort((short) directory.comment.length).put(directory.comment);
+            end.flip();
+            write(out, end);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return replaced;
+    }
+
+    /** A central directory record: its raw bytes, the entry name and where its local header is. */
+    private static class Entry {
+        final byte[] record;
+        final String name;
+        final long localOffset;
+
+        Entry(byte[] record, String name, long localOffset) {
+            this.record = record;
+            this.name = name;
+            this.localOffset = localOffset;
+        }
+    }
+
+    private static class CentralDirectory {
+        final List<Entry> entries = new ArrayList<>();
+        long offset;
+        byte[] comment;
+    }
+
+    private static CentralDirectory readCentralDirectory(FileChannel in) throws IOException {
+        long size = in.size();
+        int tailSize = (int) Math.min(size, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(in, size - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) throw new IOException("Not a jar (no end of central directory record)");
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        CentralDirectory directory = new CentralDirectory();
+        directory.offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directory.offset == 0xFFFFFFFFL) {
+            throw new IOException("Zip64 jars are not supported");
+        }
+        directory.comment = new byte[tail.getShort(end + 20) & 0xFFFF];
+        tail.position(end + END_SIZE);
+        tail.get(directory.comment);
+
+        ByteBuffer central = read(in, directory.offset, (int) centralSize);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (central.getInt(position) != CENTRAL_HEADER) {
+                throw new IOException("Corrupt central directory at entry " + i);
+            }
+            int nameLength = central.getShort(position + 28) & 0xFFFF;
+            int extraLength = central.getShort(position + 30) & 0xFFFF;
+            int commentLength = central.getShort(position + 32) & 0xFFFF;
+            byte[] record = new byte[CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength];
+            central.position(position);
+            central.get(record);
+            String name = new String(record, CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+            directory.entries.add(new Entry(record, name, central.getInt(position + 42) & 0xFFFFFFFFL));
+            position += record.length;
+        }
+        return directory;
+    }
+
+    /** A deflated entry without data descriptor; time, date and attributes come from template if given. */
+    private static void writeEntry(FileChannel out, ByteArrayOutputStream central, String name, byte[] data,
+                                   Entry template) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteBuffer source = template == null ? null : ByteBuffer.wrap(template.record).order(ByteOrder.LITTLE_ENDIAN);
+        short time = source == null ? 0 : source.getShort(12);
+        short date = source == null ? DOS_EPOCH_DATE : source.getShort(14);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long offset = checkOffset(out.position());
+
+        ByteBuffer local = ByteBuffer.allocate(30 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(LOCAL_HEADER).putShort((short) 20).putShort((short) UTF8_FLAG).putShort((short) Deflater.DEFLATED)
+                .putShort(time).putShort(date).putInt((int) crc.getValue())
+                .putInt(compressed.size()).putInt(data.length)
+                .putShort((short) nameBytes.length).putShort((short) 0).put(nameBytes);
+        local.flip();
+        write(out, local);
+        write(out, ByteBuffer.wrap(compressed.toByteArray()));
+
+        ByteBuffer record = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER).putShort(source == null ? 20 : source.getShort(4)).putShort((short) 20)
+                .putShort((short) UTF8_FLAG).putShort((short) Deflater.DEFLATED)
+                .putShort(time).putShort(date).putInt((int) crc.getValue())
+                .putInt(compressed.size()).putInt(data.length)
+                .putShort((short) nameBytes.length).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(source == null ? 0 : source.getInt(38))
+                .putInt((int) offset).put(nameBytes);
+        central.write(record.array());
+    }
+
+    private static long checkOffset(long offset) throws IOException {
+        if (offset >= 0xFFFFFFFFL) throw new IOException("Jar larger than 4 GB needs Zip64, which is not supported");
+        return offset;
+    }
+
+    private static ByteBuffer read(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of jar");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long done = 0;
+        while (done < count) {
+            done += in.transferTo(position + done, count - done, out);
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package util;
+
+import org.objectweb.asm.*;
+import soot.SootMethod;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides, from the LineNumberTables of a class file, which of its methods the EXERCISED probe
+ * of a requested line goes into, so one execution of the line is one hit. A line goes to every
+ * non-synthetic method that has it (constructors all repeat the field initializer lines); a
+ * lambda body that has it as well is left out, as the line declaring the lambda runs in the
+ * enclosing method. When only lambda bodies have the line, or only methods with a line next to
+ * it (+/-1), a single one of them gets the probe: the one that starts first. Methods of other
+ * classes of the same source file (anonymous and nested classes) are not compared, since each
+ * class is instrumented on its own.
+ */
+public class LineOwners {
+
+    /** Non-synthetic first, then the method that starts first, then the one that ends last. */
+    private static final Comparator<MethodLines> ORDER = Comparator
+            .comparing((MethodLines m) -> m.synthetic)
+            .thenComparingInt(m -> m.lines[0])
+            .thenComparingInt(m -> -m.lines[m.lines.length - 1])
+            .thenComparing(m -> m.subSignature);
+
+    private final LineSpecIndex lineSpec;
+    // Class name -> requested line -> subsignatures of the methods that probe it
+    private final Map<String, Map<Integer, Set<String>>> ownersByClass = new ConcurrentHashMap<>();
+
+    public LineOwners(LineSpecIndex lineSpec) {
+        this.lineSpec = lineSpec;
+    }
+
+    /** Scans a class before its bodies are transformed. */
+    public void add(String className, byte[] classBytes) {
+        List<MethodLines> methods = scan(classBytes);
+        methods.sort(ORDER);
+        Map<Integer, Set<String>> owners = new HashMap<>();
+        for (int line : lineSpec.linesFor(className)) {
+            Set<String> lineOwners = new HashSet<>();
+            for (MethodLines method : methods) {
+                if (Arrays.binarySearch(method.lines, line) < 0) continue;
+                if (method.synthetic) {
+                    // Methods are in ORDER, so no non-synthetic one follows
+                    if (lineOwners.isEmpty()) lineOwners.add(method.subSignature);
+                    break;
+                }
+                lineOwners.add(method.subSignature);
+            }
+            if (lineOwners.isEmpty()) {
+                for (MethodLines method : methods) {
+                    if (Arrays.binarySearch(method.lines, line - 1) >= 0 || Arrays.binarySearch(method.lines, line + 1) >= 0) {
+                        lineOwners.add(method.subSignature);
+                        break;
+                    }
+                }
+            }
+            owners.put(line, lineOwners);
+        }
+        ownersByClass.put(className, owners);
+    }
+
+    /**
+     * Whether the probe of a requested line goes into the method. True for methods of classes that
+     * were not scanned, such as the ones Soot synthesizes.
+     */
+    public boolean owns(SootMethod method, int line) {
+        Map<Integer, Set<String>> owners = ownersByClass.get(method.getDeclaringClass().getName());
+        if (owners == null) return true;
+        Set<String> lineOwners = owners.get(line);
+        return lineOwners == null || lineOwners.contains(method.getSubSignature());
+    }
+
+    private static final class MethodLines {
+        final String subSignature;
+        final boolean synthetic;
+        final int[] lines;
+
+        MethodLines(String subSignature, boolean synthetic, int[] lines) {
+            this.subSignature = subSignature;
+            this.synthetic = synthetic;
+            this.lines = lines;
+        }
+    }
+
+    // Concrete methods with at least one line, lines ascending
+    private static List<MethodLines> scan(byte[] classBytes) {
+        List<MethodLines> methods = new ArrayList<>();
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) return null;
+                boolean synthetic = (access & Opcodes.ACC_SYNTHETIC) != 0;
+                TreeSet<Integer> lines = new TreeSet<>();
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        lines.add(line);
+                    }
+
+                    @Override
+                    public void visitEnd() {
+                        if (!lines.isEmpty()) {
+                            methods.add(new MethodLines(MethodSplicer.subSignature(name, descriptor), synthetic,
+                                    lines.stream().mapToInt(Integer::intValue).toArray()));
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES);
+        return methods;
+    }
+}
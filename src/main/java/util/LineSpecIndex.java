@@ -0,0 +1,116 @@
+package util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup structure over the lines-to-instrument spec, built once and shared by the transformers.
+ * Spec paths are indexed by file name, so a spec path has to name the whole source file
+ * ({@code demo/Calc.java} or {@code Calc.java}, not {@code alc.java}). A class resolves against
+ * the few entries for its source file instead of the whole spec; among those the first entry in
+ * the map's iteration order (spec order, as Main.readLinesFromFile keeps it) where either path
+ * contains the other wins. Results are memoized per class and kept as sorted arrays so matching
+ * against a method body is a binary search. Nested, anonymous and lambda classes
+ * ({@code Outer$...}) resolve to the source file of their outermost class.
+ */
+public class LineSpecIndex {
+    private static final int[] NO_LINES = new int[0];
+
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, List<Map.Entry<String, int[]>>> entriesByFileName = new HashMap<>();
+    private final Map<String, int[]> linesByClass = new ConcurrentHashMap<>();
+
+    public LineSpecIndex(Map<String, Set<Integer>> linesToInstrument) {
+        for (Map.Entry<String, Set<Integer>> entry : linesToInstrument.entrySet()) {
+            int[] lines = entry.getValue().stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+            paths.add(entry.getKey());
+            entriesByFileName.computeIfAbsent(fileName(entry.getKey()), k -> new ArrayList<>())
+                    .add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), lines));
+        }
+    }
+
+    /** Sorted spec lines for the source file of a class; empty when the spec does not mention it. */
+    public int[] linesFor(String className) {
+        return linesByClass.computeIfAbsent(className, this::resolve);
+    }
+
+    /**
+     * Spec paths, in spec order, that none of the classes resolves to; their lines are never
+     * instrumented, e.g. because a path is misspelt or names only part of a file name.
+     */
+    public List<String> unmatchedPaths(Collection<String> classNames) {
+        Set<String> matched = new HashSet<>();
+        for (String className : classNames) {
+            Map.Entry<String, int[]> entry = resolveEntry(className);
+            if (entry != null) matched.add(entry.getKey());
+        }
+        List<String> unmatched = new ArrayList<>(paths);
+        unmatched.removeAll(matched);
+        return unmatched;
+    }
+
+    /** Whether the spec requests any line in the source file of the class. */
+    public boolean touches(String className) {
+        return linesFor(className).length > 0;
+    }
+
+    /** Source path of a class as used in the spec and the probe manifest, e.g. a/b/Foo.java for a.b.Foo$1. */
+    public static String sourceFile(String className) {
+        int nested = className.indexOf('$', className.lastIndexOf('.') + 1);
+        String outer = nested > 0 ? className.substring(0, nested) : className;
+        return outer.replace('.', '/') + ".java";
+    }
+
+    private int[] resolve(String className) {
+        Map.Entry<String, int[]> entry = resolveEntry(className);
+        return entry == null ? NO_LINES : entry.getValue();
+    }
+
+    private Map.Entry<String, int[]> resolveEntry(String className) {
+        String classFilePath = sourceFile(className);
+        List<Map.Entry<String, int[]>> candidates = entriesByFileName.get(fileName(classFilePath));
+        if (candidates == null) return null;
+        for (Map.Entry<String, int[]> entry : candidates) {
+            if (classFilePath.contains(entry.getKey()) || entry.getKey().contains(classFilePath)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requested lines that have a body line within one line of them (the transformers allow a
+     * +/-1 offset), in ascending order.
+     */
+    public static int[] match(int[] requested, int[] sortedBodyLines) {
+        if (requested.length == 0 || sortedBodyLines.length == 0) return NO_LINES;
+
+        int from = lowerBound(requested, sortedBodyLines[0] - 1);
+        int to = lowerBound(requested, sortedBodyLines[sortedBodyLines.length - 1] + 2);
+        int[] matched = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int line = requested[i];
+            int nearest = lowerBound(sortedBodyLines, line - 1);
+            if (nearest < sortedBodyLines.length && sortedBodyLines[nearest] <= line + 1) {
+                matched[count++] = line;
+            }
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+    // Index of the first element >= key
+    private static int lowerBound(int[] sorted, int key) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
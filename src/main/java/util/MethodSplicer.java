@@ -0,0 +1,113 @@
+package util;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+import soot.SootClass;
+import soot.SootMethod;
+
+import java.util.*;
+
+/**
+ * Method-level selection inside a class. A pre-scan of the class file's LineNumberTables decides
+ * which methods can contain requested lines; the others are removed from the SootClass before the
+ * packs run, so Soot never builds Jimple for them. After Soot writes the reduced class,
+ * {@link #splice} puts the transformed methods back into the original class file, so every
+ * other method keeps its original bytecode.
+ */
+public class MethodSplicer {
+
+    /**
+     * Soot subsignature -> distinct LineNumberTable lines (ascending) for the concrete,
+     * non-synthetic methods of a class file. Synthetic methods (lambda bodies, bridges) are left
+     * out, so they are always transformed: Soot may widen their access when it rewrites lambdas.
+     */
+    public static Map<String, int[]> scanLines(byte[] classBytes) {
+        Map<String, int[]> linesByMethod = new HashMap<>();
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC)) != 0) return null;
+                String subSignature = subSignature(name, descriptor);
+                TreeSet<Integer> lines = new TreeSet<>();
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        lines.add(line);
+                    }
+
+                    @Override
+                    public void visitEnd() {
+                        linesByMethod.put(subSignature, lines.stream().mapToInt(Integer::intValue).toArray());
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES);
+        return linesByMethod;
+    }
+
+    /**
+     * Removes the concrete methods of a class that have no requested line within +/-1 of their
+     * lines (the transformers' rule). Returns whether anything was removed, i.e. whether the
+     * written class has to be spliced.
+     */
+    public static boolean pruneMethods(SootClass sootClass, byte[] originalBytes, int[] requestedLines) {
+        Map<String, int[]> linesByMethod = scanLines(originalBytes);
+        boolean pruned = false;
+        for (SootMethod method : new ArrayList<>(sootClass.getMethods())) {
+            int[] methodLines = linesByMethod.get(method.getSubSignature());
+            if (method.isConcrete() && methodLines != null && LineSpecIndex.match(requestedLines, methodLines).length == 0) {
+                sootClass.removeMethod(method);
+                pruned = true;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * The original class with each method (and any field) that Soot wrote for the reduced class
+     * put in place of, or next to, the original one.
+     */
+    public static byte[] splice(byte[] originalBytes, byte[] transformedBytes) {
+        ClassNode result = new ClassNode();
+        new ClassReader(originalBytes).accept(result, 0);
+        ClassNode transformed = new ClassNode();
+        new ClassReader(transformedBytes).accept(transformed, 0);
+
+        Map<String, MethodNode> replacements = new LinkedHashMap<>();
+        for (MethodNode method : transformed.methods) {
+            replacements.put(method.name + method.desc, method);
+        }
+        for (int i = 0; i < result.methods.size(); i++) {
+            MethodNode original = result.methods.get(i);
+            MethodNode replacement = replacements.remove(original.name + original.desc);
+            if (replacement != null) {
+                result.methods.set(i, replacement);
+            }
+        }
+        result.methods.addAll(replacements.values());
+
+        Set<String> fields = new HashSet<>();
+        for (FieldNode field : result.fields) {
+            fields.add(field.name);
+        }
+        for (FieldNode field : transformed.fields) {
+            if (fields.add(field.name)) {
+                result.fields.add(field);
+            }
+        }
+
+        ClassWriter writer = new ClassWriter(0);
+        result.accept(writer);
+        return writer.toByteArray();
+    }
+
+    static String subSignature(String name, String descriptor) {
+        StringJoiner parameters = new StringJoiner(",", "(", ")");
+        for (Type parameter : Type.getArgumentTypes(descriptor)) {
+            parameters.add(parameter.getClassName());
+        }
+        return Type.getReturnType(descriptor).getClassName() + " " + name + parameters;
+    }
+}
@@ -0,0 +1,42 @@
+package util;
+
+import soot.Body;
+import soot.BodyTransformer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which classes the jtp transformers actually changed. {@link #before()} and
+ * {@link #after()} go first and last in the pack and compare the unit chain's modification count
+ * around the transformers in between.
+ */
+public class ModificationTracker {
+    private final Set<String> modifiedClasses = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Long> stamp = new ThreadLocal<>();
+
+    public BodyTransformer before() {
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body body, String phase, Map<String, String> options) {
+                stamp.set(body.getUnits().getModificationCount());
+            }
+        };
+    }
+
+    public BodyTransformer after() {
+        return new BodyTransformer() {
+            @Override
+            protected void internalTransform(Body body, String phase, Map<String, String> options) {
+                if (body.getUnits().getModificationCount() != stamp.get()) {
+                    modifiedClasses.add(body.getMethod().getDeclaringClass().getName());
+                }
+            }
+        };
+    }
+
+    public boolean isModified(String className) {
+        return modifiedClasses.contains(className);
+    }
+}
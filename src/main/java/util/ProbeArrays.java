@@ -0,0 +1,102 @@
+package util;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import soot.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-class probe arrays ({@code --probe-arrays}). Every instrumented class gets a static
+ * {@code boolean[]} with a slot per probe, fetched through its {@code $coverageInit()}. A probe
+ * checks its slot inline and only calls {@code Logger.hit} while the slot is clear, so a site
+ * that already ran in the current test costs an array load and a branch. Logger hands out the
+ * arrays and clears them when a test starts.
+ * <p>
+ * Slots are numbered while the bodies are transformed, so the size of an array is only known
+ * once the packs have run. {@link #declare} gives a class the field and a native accessor before
+ * the packs; {@link #complete} turns the accessor into bytecode after Soot wrote the class file.
+ */
+public class ProbeArrays {
+    public static final String FIELD = "$coverageProbes";
+    public static final String ACCESSOR = "$coverageInit";
+    private static final ArrayType ARRAY_TYPE = ArrayType.v(BooleanType.v(), 1);
+    private static final String ACCESSOR_SUBSIGNATURE = ARRAY_TYPE + " " + ACCESSOR + "()";
+
+    // Class name -> probe ID -> slot
+    private final Map<String, Map<Integer, Integer>> slotsByClass = new ConcurrentHashMap<>();
+
+    /** Adds the array field and the native accessor; interfaces cannot hold them and keep plain probes. */
+    public static void declare(SootClass sootClass) {
+        if (sootClass.isInterface() || sootClass.declaresMethod(ACCESSOR_SUBSIGNATURE)) return;
+        int modifiers = Modifier.PRIVATE | Modifier.STATIC | Modifier.SYNTHETIC;
+        sootClass.addField(new SootField(FIELD, ARRAY_TYPE, modifiers | Modifier.TRANSIENT));
+        sootClass.addMethod(new SootMethod(ACCESSOR, Collections.emptyList(), ARRAY_TYPE, modifiers | Modifier.NATIVE));
+    }
+
+    /** The accessor of a class given one by {@link #declare}, or null. */
+    public static SootMethod accessor(SootClass sootClass) {
+        return sootClass.getMethodUnsafe(ACCESSOR_SUBSIGNATURE);
+    }
+
+    /** Slot of a probe in its class's array; a probe in several bodies of the class keeps one slot. */
+    public int slot(String className, int probeId) {
+        Map<Integer, Integer> slots = slotsByClass.computeIfAbsent(className, k -> new HashMap<>());
+        synchronized (slots) {
+            return slots.computeIfAbsent(probeId, id -> slots.size());
+        }
+    }
+
+    public int size(String className) {
+        Map<Integer, Integer> slots = slotsByClass.getOrDefault(className, Collections.emptyMap());
+        synchronized (slots) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * The class file with the body of its native accessor written: the array from the field,
+     * or a new one from {@code Logger.probeArray(size)} on the first call. A class without the
+     * accessor is returned unchanged.
+     */
+    public byte[] complete(String className, byte[] classBytes) {
+        ClassNode node = new ClassNode();
+        new ClassReader(classBytes).accept(node, 0);
+        MethodNode accessor = null;
+        for (MethodNode method : node.methods) {
+            if (method.name.equals(ACCESSOR) && method.desc.equals("()[Z") && (method.access & Opcodes.ACC_NATIVE) != 0) {
+                accessor = method;
+            }
+        }
+        if (accessor == null) return classBytes;
+
+        accessor.access &= ~Opcodes.ACC_NATIVE;
+        LabelNode initialized = new LabelNode();
+        InsnList code = accessor.instructions;
+        code.add(new FieldInsnNode(Opcodes.GETSTATIC, node.name, FIELD, "[Z"));
+        code.add(new InsnNode(Opcodes.DUP));
+        code.add(new JumpInsnNode(Opcodes.IFNONNULL, initialized));
+        code.add(new InsnNode(Opcodes.POP));
+        code.add(new LdcInsnNode(size(className)));
+        code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "Logger", "probeArray", "(I)[Z", false));
+        code.add(new InsnNode(Opcodes.DUP));
+        code.add(new FieldInsnNode(Opcodes.PUTSTATIC, node.name, FIELD, "[Z"));
+        code.add(initialized);
+        // Class files before Java 6 have no stack map frames
+        if ((node.version & 0xFFFF) >= Opcodes.V1_6) {
+            code.add(new FrameNode(Opcodes.F_SAME1, 0, null, 1, new Object[]{"[Z"}));
+        }
+        code.add(new InsnNode(Opcodes.ARETURN));
+        accessor.maxStack = 2;
+        accessor.maxLocals = 0;
+
+        ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+}
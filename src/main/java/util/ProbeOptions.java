@@ -0,0 +1,62 @@
+package util;
+
+import java.util.Map;
+
+/**
+ * How the product transformers place probes: {@code --probes=all|minimal},
+ * {@code --loop-probes=once|every}, {@code --probe-arrays} and {@code --hit-counts} on the
+ * command line, {@code probes=}, {@code loop-probes=}, {@code probe-arrays} and
+ * {@code hit-counts} for CoverageAgent.
+ */
+public final class ProbeOptions {
+    public static final ProbeOptions DEFAULT = new ProbeOptions(false, true, false, false);
+
+    /** One EXERCISED probe per group of lines that always run together, the rest inferred. */
+    public final boolean minimal;
+    /** Probes inside a loop are guarded by a local flag and call Logger once per invocation. */
+    public final boolean onceInLoops;
+    /**
+     * Each class gets a static array with a slot per probe, and a probe only calls Logger while
+     * its slot is clear (see {@link ProbeArrays}); replaces the loop flags where it applies.
+     */
+    public final boolean probeArrays;
+    /** Probes call Logger.count on every execution, unguarded, so Logger can count hits per test. */
+    public final boolean hitCounts;
+
+    public ProbeOptions(boolean minimal, boolean onceInLoops, boolean probeArrays, boolean hitCounts) {
+        this.minimal = minimal;
+        this.onceInLoops = onceInLoops;
+        this.probeArrays = probeArrays;
+        this.hitCounts = hitCounts;
+    }
+
+    /** Reads the options above; absent ones keep their default. */
+    public static ProbeOptions parse(Map<String, String> options) {
+        String probes = options.getOrDefault("probes", "all");
+        if (!probes.equals("all") && !probes.equals("minimal")) {
+            throw new IllegalArgumentException("Invalid --probes: " + probes + ". Expected 'all' or 'minimal'.");
+        }
+        boolean hitCounts = Boolean.parseBoolean(options.getOrDefault("hit-counts", "false"));
+        String loopProbes = options.getOrDefault("loop-probes", hitCounts ? "every" : "once");
+        if (!loopProbes.equals("once") && !loopProbes.equals("every")) {
+            throw new IllegalArgumentException("Invalid --loop-probes: " + loopProbes + ". Expected 'once' or 'every'.");
+        }
+        boolean probeArrays = Boolean.parseBoolean(options.getOrDefault("probe-arrays", "false"));
+        if (hitCounts && (probeArrays || loopProbes.equals("once"))) {
+            throw new IllegalArgumentException("--hit-counts needs every execution to reach Logger;"
+                    + " it cannot be combined with --probe-arrays or --loop-probes=once.");
+        }
+        return new ProbeOptions(probes.equals("minimal"), loopProbes.equals("once"), probeArrays, hitCounts);
+    }
+
+    /** The Logger method the probes call. */
+    public String probeMethod() {
+        return hitCounts ? "<Logger: void count(int)>" : "<Logger: void hit(int)>";
+    }
+
+    /** For the cache fingerprint: every option that changes the instrumented output. */
+    public String fingerprint() {
+        return "probes=" + (minimal ? "minimal" : "all") + "|loop-probes=" + (onceInLoops ? "once" : "every")
+                + "|probe-arrays=" + probeArrays + "|hit-counts=" + hitCounts;
+    }
+}
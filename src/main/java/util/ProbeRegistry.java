@@ -0,0 +1,324 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Assigns a dense integer ID to every probe site at instrumentation time.
+ * The instrumented code calls {@code Logger.hit(int)} with this ID; the manifest
+ * written by {@link #writeManifest(Path)} maps it back to file, line, index and kind.
+ * An EXERCISED_INFERRED row is a requested line without a probe of its own (see
+ * {@code --probes=minimal}): its index column holds the ID of the probe whose hit implies it.
+ * Registries in parallel worker JVMs share one ID space through {@link #reserveFrom(Path)};
+ * their manifests may then have gaps and are combined with {@link #merge(ProbeRegistry)}.
+ */
+public class ProbeRegistry {
+    public static final String EXERCISED = "EXERCISED";
+    public static final String SUBCONDITION_CHECKED = "SUBCONDITION_CHECKED";
+    public static final String EXERCISED_INFERRED = "EXERCISED_INFERRED";
+    public static final String MANIFEST_FILE = "probes.manifest";
+
+    public static class Probe {
+        public final int id;
+        public final String kind;
+        public final String file;
+        public final int line;
+        public final int index;
+
+        public Probe(int id, String kind, String file, int line, int index) {
+            this.id = id;
+            this.kind = kind;
+            this.file = file;
+            this.line = line;
+            this.index = index;
+        }
+
+        String key() {
+            return key(kind, file, line, index);
+        }
+
+        static String key(String kind, String file, int line, int index) {
+            return kind + ":" + file + ":" + line + ":" + index;
+        }
+    }
+
+    // Indexed by ID; null where an ID was reserved by another worker
+    private final List<Probe> probes = new ArrayList<>();
+    private final Map<String, Integer> idsByKey = new HashMap<>();
+    // Probe ID -> the EXERCISED_INFERRED rows its hit implies
+    private final Map<Integer, List<Probe>> inferred = new HashMap<>();
+    private int count;
+    // Probe IDs used by each instrumented class, for the instrumentation cache
+    private final Map<String, Set<Integer>> idsByClass = new HashMap<>();
+    private int nextId;
+    // Shared counter file for parallel workers; IDs are reserved from it in blocks
+    private Path counterFile;
+    private int reservedEnd;
+    private static final int RESERVE_BLOCK = 1024;
+    // Class name -> IDs its probes had in an earlier run, handed out again before fresh ones
+    private final Map<String, Deque<Integer>> reusableIds = new HashMap<>();
+
+    public synchronized int registerLine(String className, String file, int line) {
+        return track(className, register(className, EXERCISED, file, line, 0));
+    }
+
+    public synchronized int registerSubcondition(String className, String file, int line, int index) {
+        return track(className, register(className, SUBCONDITION_CHECKED, file, line, index));
+    }
+
+    /** A requested line that is covered whenever probe sourceId is hit. */
+    public synchronized int registerInferredLine(String className, String file, int line, int sourceId) {
+        return track(className, register(className, EXERCISED_INFERRED, file, line, sourceId));
+    }
+
+    /** Re-registers probes baked into a class restored from the cache, keeping their IDs. */
+    public synchronized void registerCached(String className, List<Probe> cached) throws IOException {
+        for (Probe probe : cached) {
+            Probe existing = probe.id < probes.size() ? probes.get(probe.id) : null;
+            if (existing == null) {
+                put(probe);
+            } else if (!existing.key().equals(probe.key())) {
+                throw new IOException("Cached probe ID " + probe.id + " of " + className + " is already used by " + existing.key());
+            }
+            track(className, probe.id);
+        }
+    }
+
+    public synchronized List<Probe> probesOf(String className) {
+        List<Probe> result = new ArrayList<>();
+        for (int id : idsByClass.getOrDefault(className, Collections.emptySet())) {
+            result.add(probes.get(id));
+        }
+        return result;
+    }
+
+    private int track(String className, int id) {
+        idsByClass.computeIfAbsent(className, k -> new TreeSet<>()).add(id);
+        return id;
+    }
+
+    // Same site registered twice (e.g. the same line reached from a lambda body) keeps one ID
+    private int register(String className, String kind, String file, int line, int index) {
+        String key = Probe.key(kind, file, line, index);
+        Integer existing = idsByKey.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int id = nextId(className);
+        put(new Probe(id, kind, file, line, index));
+        return id;
+    }
+
+    private void put(Probe probe) {
+        while (probes.size() <= probe.id) {
+            probes.add(null);
+        }
+        probes.set(probe.id, probe);
+        idsByKey.put(probe.key(), probe.id);
+        if (EXERCISED_INFERRED.equals(probe.kind)) {
+            inferred.computeIfAbsent(probe.index, k -> new ArrayList<>()).add(probe);
+        }
+        count++;
+    }
+
+    private int nextId(String className) {
+        Deque<Integer> reusable = reusableFor(className);
+        while (reusable != null && !reusable.isEmpty()) {
+            int id = reusable.poll();
+            if (get(id) == null) return id;
+        }
+        while (true) {
+            if (counterFile != null && nextId == reservedEnd) {
+                try {
+                    nextId = reserveBlock(counterFile, RESERVE_BLOCK);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot reserve probe IDs from " + counterFile, e);
+                }
+                reservedEnd = nextId + RESERVE_BLOCK;
+            }
+            int id = nextId++;
+            if (get(id) == null) return id; // skip IDs taken by cached classes or a known manifest
+        }
+    }
+
+    // Classes Soot synthesizes for a class (Outer$run__1) share its IDs
+    private Deque<Integer> reusableFor(String className) {
+        String owner = className;
+        while (true) {
+            Deque<Integer> reusable = reusableIds.get(owner);
+            if (reusable != null) return reusable;
+            int nested = owner.lastIndexOf('$');
+            if (nested == -1) return null;
+            owner = owner.substring(0, nested);
+        }
+    }
+
+    /**
+     * Gives the probes of className (and of the classes synthesized for it) these IDs before
+     * fresh ones, so a class that is instrumented again keeps the IDs it had.
+     */
+    public synchronized void reuseIds(String className, Collection<Integer> ids) {
+        reusableIds.computeIfAbsent(className, k -> new ArrayDeque<>()).addAll(new TreeSet<>(ids));
+    }
+
+    /** IDs given to {@link #reuseIds} that no probe has taken. */
+    public synchronized List<Integer> unusedReusableIds(String className) {
+        List<Integer> unused = new ArrayList<>();
+        for (int id : reusableIds.getOrDefault(className, new ArrayDeque<>())) {
+            if (get(id) == null) unused.add(id);
+        }
+        return unused;
+    }
+
+    /** Takes IDs in blocks from a counter file shared with other worker JVMs. */
+    public synchronized void reserveFrom(Path counterFile) {
+        this.counterFile = counterFile;
+        this.reservedEnd = nextId;
+    }
+
+    /**
+     * Hands the unused rest of the last reserved block back to the counter file, unless another
+     * JVM has reserved after it, so the counter only grows by the IDs actually used.
+     */
+    public synchronized void releaseReserved() throws IOException {
+        if (counterFile == null || nextId == reservedEnd) return;
+        releaseBlock(counterFile, reservedEnd, nextId);
+        reservedEnd = nextId;
+    }
+
+    // Moves the counter back from end to used, if it still stands at end
+    static void releaseBlock(Path counterFile, int end, int used) throws IOException {
+        try (FileChannel ch = FileChannel.open(counterFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = ch.lock()) {
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
+            if (ch.read(buf, 0) != Integer.BYTES || buf.getInt(0) != end) return;
+            buf.clear();
+            buf.putInt(used).flip();
+            ch.write(buf, 0);
+        }
+    }
+
+    // Reads the next free ID from the counter file and advances it by blockSize, under a file lock
+    static int reserveBlock(Path counterFile, int blockSize) throws IOException {
+        try (FileChannel ch = FileChannel.open(counterFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = ch.lock()) {
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
+            int start = ch.read(buf, 0) == Integer.BYTES ? buf.getInt(0) : 0;
+            buf.clear();
+            buf.putInt(start + blockSize).flip();
+            ch.write(buf, 0);
+            return start;
+        }
+    }
+
+    /** Adds the probes of a worker's registry; their IDs must not collide with ours. */
+    public synchronized void merge(ProbeRegistry other) throws IOException {
+        for (Probe probe : other.probes) {
+            if (probe == null) continue;
+            if (probe.id < probes.size() && probes.get(probe.id) != null) {
+                throw new IOException("Probe ID " + probe.id + " registered twice");
+            }
+            put(probe);
+        }
+        nextId = Math.max(nextId, probes.size());
+    }
+
+    /** Number of probes; IDs may have gaps, so this is not a bound on them (see {@link #get}). */
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Lines to count as exercised when probe ID is hit, besides its own. */
+    public synchronized List<Probe> inferredFrom(int id) {
+        return inferred.getOrDefault(id, Collections.emptyList());
+    }
+
+    /** The probe with this ID, or null for an ID no probe has (a gap, or past the highest ID). */
+    public synchronized Probe get(int id) {
+        return id >= 0 && id < probes.size() ? probes.get(id) : null;
+    }
+
+    public synchronized void writeManifest(Path manifest) throws IOException {
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(manifest, StandardCharsets.UTF_8))) {
+            pw.println("# id\tkind\tfile\tline\tindex");
+            for (Probe p : probes) {
+                if (p == null) continue;
+                pw.println(p.id + "\t" + p.kind + "\t" + p.file + "\t" + p.line + "\t" + p.index);
+            }
+        }
+    }
+
+    /**
+     * Takes the probes of a manifest that other JVMs (or earlier runs) wrote, so sites already
+     * in it keep their IDs instead of getting new ones in every JVM.
+     */
+    public synchronized void registerKnown(Path manifest) throws IOException {
+        try (FileChannel ch = lockManifest(manifest); FileLock ignored = ch.lock()) {
+            if (!Files.exists(manifest)) return;
+            for (Probe probe : readManifest(manifest).probes) {
+                if (probe != null && get(probe.id) == null && !idsByKey.containsKey(probe.key())) {
+                    put(probe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes these probes into a manifest that other JVMs (e.g. forked test JVMs running
+     * CoverageAgent) also write to, under a lock file next to it. IDs must come from a shared
+     * counter. Rows of the manifest are kept unless their ID is one of ours (an ID that now
+     * names another site) or they are inferred from one of our probes, so a site is never
+     * listed twice under one ID and the manifest does not grow with every JVM.
+     */
+    public synchronized void appendToManifest(Path manifest) throws IOException {
+        try (FileChannel ch = lockManifest(manifest); FileLock ignored = ch.lock()) {
+            ProbeRegistry combined = new ProbeRegistry();
+            for (Probe probe : probes) {
+                if (probe != null) combined.put(probe);
+            }
+            if (Files.exists(manifest)) {
+                for (Probe probe : readManifest(manifest).probes) {
+                    if (probe == null || get(probe.id) != null) continue;
+                    if (EXERCISED_INFERRED.equals(probe.kind) && get(probe.index) != null) continue;
+                    combined.put(probe);
+                }
+            }
+            combined.writeManifest(manifest);
+        }
+    }
+
+    private static FileChannel lockManifest(Path manifest) throws IOException {
+        Path lockFile = manifest.resolveSibling(manifest.getFileName() + ".lock");
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    public static ProbeRegistry readManifest(Path manifest) throws IOException {
+        return parseManifest(Files.readAllLines(manifest, StandardCharsets.UTF_8));
+    }
+
+    public static ProbeRegistry parseManifest(List<String> rows) throws IOException {
+        ProbeRegistry registry = new ProbeRegistry();
+        for (String row : rows) {
+            if (row.isEmpty() || row.startsWith("#")) continue;
+            String[] parts = row.split("\t");
+            if (parts.length != 5) continue;
+            int id = Integer.parseInt(parts[0]);
+            if (id < registry.probes.size() && registry.probes.get(id) != null) {
+                throw new IOException("Probe manifest lists id " + id + " twice");
+            }
+            registry.put(new Probe(id, parts[1], parts[2], Integer.parseInt(parts[3]), Integer.parseInt(parts[4])));
+        }
+        registry.nextId = registry.probes.size();
+        return registry;
+    }
+}
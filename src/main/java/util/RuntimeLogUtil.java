@@ -4,18 +4,67 @@ import soot.*;
 import soot.jimple.*;
 import soot.util.Chain;
 
+import java.util.Arrays;
+
 public class RuntimeLogUtil {
     public static boolean DEBUG_MODE = false; // true = verbose, false = minimal
 
-    public static void insertLineExercisedLog(Unit anchorStmt, PatchingChain<Unit> units, String sourceFile, int line, SootMethod logMethod) {
-//        System.out.println("Inserting line exercised log for " + sourceFile);
-        String message = "{event: EXERCISED, file: " + sourceFile + ", line: " + line + "}";
-        InvokeExpr invokeExpr = Jimple.v().newStaticInvokeExpr(
-                logMethod.makeRef(),
-                StringConstant.v(message)
-        );
-        InvokeStmt logStmt = Jimple.v().newInvokeStmt(invokeExpr);
-        units.insertBefore(logStmt, anchorStmt);
+    public static void insertLineExercisedLog(Unit anchorStmt, PatchingChain<Unit> units, int probeId, SootMethod hitMethod) {
+        insertProbeHit(probeId, anchorStmt, units, hitMethod);
+    }
+
+    /**
+     * Logger.hit(probeId) behind a local flag that is cleared on method entry and set by the
+     * first hit, for probes inside loops: later iterations of the same invocation only test the
+     * flag. The probe then reports at most once per invocation, so an invocation that spans two
+     * tests only reports to the first.
+     */
+    public static void insertProbeHitOncePerInvocation(int probeId, Unit anchor, Body body, SootMethod hitMethod) {
+        PatchingChain<Unit> units = body.getUnits();
+        Local flag = TempVariableUtil.newLocal(body, "_autogen_once_", BooleanType.v());
+        // Without redirect: a loop back to the first statement must not clear the flag again
+        units.insertBeforeNoRedirect(Jimple.v().newAssignStmt(flag, IntConstant.v(0)),
+                ((JimpleBody) body).getFirstNonIdentityStmt());
+
+        Unit setFlag = Jimple.v().newAssignStmt(flag, IntConstant.v(1));
+        units.insertBefore(setFlag, anchor);
+        insertProbeHit(probeId, anchor, units, hitMethod);
+        // Created after the inserts above, which send the jumps to anchor to setFlag, so that
+        // its own target stays anchor; inserting it before setFlag takes those jumps over
+        units.insertBefore(Jimple.v().newIfStmt(Jimple.v().newNeExpr(flag, IntConstant.v(0)), anchor), setFlag);
+    }
+
+    /**
+     * Logger.hit(probeId) behind slot of the class's probe array (see {@link ProbeArrays}): the
+     * body fetches the array once per invocation, and a probe whose slot is already set only
+     * loads it and branches.
+     */
+    public static void insertProbeHitUnlessSeen(int probeId, int slot, Unit anchor, Body body,
+                                                SootMethod accessor, SootMethod hitMethod) {
+        PatchingChain<Unit> units = body.getUnits();
+        Local array = probeArrayLocal(body, accessor);
+        Local seen = TempVariableUtil.newLocal(body, "_autogen_seen_", BooleanType.v());
+
+        Unit setSlot = Jimple.v().newAssignStmt(Jimple.v().newArrayRef(array, IntConstant.v(slot)), IntConstant.v(1));
+        units.insertBefore(setSlot, anchor);
+        insertProbeHit(probeId, anchor, units, hitMethod);
+        // As in insertProbeHitOncePerInvocation: the check is created once jumps to anchor lead to setSlot
+        units.insertBefore(Arrays.<Unit>asList(
+                Jimple.v().newAssignStmt(seen, Jimple.v().newArrayRef(array, IntConstant.v(slot))),
+                Jimple.v().newIfStmt(Jimple.v().newNeExpr(seen, IntConstant.v(0)), anchor)), setSlot);
+    }
+
+    // One local per body holds the array, assigned on entry by the first probe that needs it
+    private static Local probeArrayLocal(Body body, SootMethod accessor) {
+        for (Local local : body.getLocals()) {
+            if (local.getName().equals("_autogen_probes")) return local;
+        }
+        Local array = Jimple.v().newLocal("_autogen_probes", accessor.getReturnType());
+        body.getLocals().add(array);
+        body.getUnits().insertBeforeNoRedirect(
+                Jimple.v().newAssignStmt(array, Jimple.v().newStaticInvokeExpr(accessor.makeRef())),
+                ((JimpleBody) body).getFirstNonIdentityStmt());
+        return array;
     }
 
     public static void insertConditionLog(Local left, Local right, String op,
@@ -39,22 +88,16 @@ public class RuntimeLogUtil {
         );
     }
 
-    public static void insertSubconditionCheckedLog(int index, Unit anchor, Chain<Unit> units,
-                                                    Body body, SootMethod logMethod) {
-        String sourceFile = body.getMethod().getDeclaringClass().getName().replace('.', '/') + ".java";
-        int line = anchor.getJavaSourceStartLineNumber();
-
-        String msg = String.format(
-                "{event: SUBCONDITION_CHECKED, file: %s, line: %d, index: %d}",
-                sourceFile, line, index
-        );
+    public static void insertSubconditionCheckedLog(int probeId, Unit anchor, Chain<Unit> units, SootMethod hitMethod) {
+        insertProbeHit(probeId, anchor, units, hitMethod);
+    }
 
-        units.insertBefore(
-                Jimple.v().newInvokeStmt(
-                        Jimple.v().newStaticInvokeExpr(logMethod.makeRef(), StringConstant.v(msg))
-                ),
-                anchor
+    // Logger.hit(probeId): an int constant only, no message string to parse at runtime
+    private static void insertProbeHit(int probeId, Unit anchor, Chain<Unit> units, SootMethod hitMethod) {
+        InvokeStmt hitStmt = Jimple.v().newInvokeStmt(
+                Jimple.v().newStaticInvokeExpr(hitMethod.makeRef(), IntConstant.v(probeId))
         );
+        units.insertBefore(hitStmt, anchor);
     }
 
     public static void insertRuntimeLog(Local local, boolean isConstant, String eventType, Chain<Unit> units, Unit anchor,
@@ -64,8 +107,7 @@ public class RuntimeLogUtil {
         SootMethod valueOfMethod = TempVariableUtil.getStringValueOfMethodForType(type);
 
         if (valueOfMethod != null) {
-            Local valueStr = Jimple.v().newLocal("_autogen_val_" + TempVariableUtil.counter.getAndIncrement(), RefType.v("java.lang.String"));
-            body.getLocals().add(valueStr);
+            Local valueStr = TempVariableUtil.newLocal(body, "_autogen_val_", RefType.v("java.lang.String"));
 
             units.insertBefore(Jimple.v().newAssignStmt(
                     valueStr,
@@ -132,8 +174,7 @@ public class RuntimeLogUtil {
 
 
     public static Local concatStrings(Local base, Local append, Chain<Unit> units, Unit anchor, Body body) {
-        Local result = Jimple.v().newLocal("_autogen_concat_" + TempVariableUtil.counter.getAndIncrement(), RefType.v("java.lang.String"));
-        body.getLocals().add(result);
+        Local result = TempVariableUtil.newLocal(body, "_autogen_concat_", RefType.v("java.lang.String"));
 
         units.insertBefore(Jimple.v().newAssignStmt(
                 result,
@@ -148,8 +189,7 @@ public class RuntimeLogUtil {
     }
 
     public static Local createStringLocal(String constant, Chain<Unit> units, Unit anchor, Body body) {
-        Local strLocal = Jimple.v().newLocal("_autogen_str_" + TempVariableUtil.counter.getAndIncrement(), RefType.v("java.lang.String"));
-        body.getLocals().add(strLocal);
+        Local strLocal = TempVariableUtil.newLocal(body, "_autogen_str_", RefType.v("java.lang.String"));
 
         units.insertBefore(Jimple.v().newAssignStmt(
                 strLocal,
@@ -4,16 +4,23 @@ import soot.*;
 import soot.jimple.*;
 import soot.util.Chain;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 public class TempVariableUtil {
-    static final AtomicInteger counter = new AtomicInteger(1);
+
+    /**
+     * Adds a local named prefix plus a number not yet used in this body (see
+     * {@link BodyAnalysis#newLocalName}). Names depend only on the body, not on which bodies
+     * were instrumented before it or on other threads.
+     */
+    public static Local newLocal(Body body, String prefix, Type type) {
+        Local local = Jimple.v().newLocal(BodyAnalysis.of(body).newLocalName(prefix), type);
+        body.getLocals().add(local);
+        return local;
+    }
 
     public static Local createTempForValue(Value original, String eventType, Chain<Unit> units, Unit anchor,
                                            Body body, SootMethod logMethod) {
         // 1. Create temp
-        Local temp = Jimple.v().newLocal("__autogen_" + counter.getAndIncrement(), original.getType());
-        body.getLocals().add(temp);
+        Local temp = newLocal(body, "__autogen_", original.getType());
         // 2. Assign original value into temp (evaluate now)
         AssignStmt assign = Jimple.v().newAssignStmt(temp, original);
         units.insertBefore(assign, anchor);
@@ -0,0 +1,56 @@
+import org.junit.Test;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.VoidType;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.tagkit.LineNumberTag;
+import util.BodyAnalysis;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BodyAnalysisTest {
+
+    private Unit createDummyStmt(String name, int lineNumber) {
+        Unit stmt = Jimple.v().newAssignStmt(
+                Jimple.v().newLocal("var_" + name, IntConstant.v(1).getType()),
+                IntConstant.v(1)
+        );
+        if (lineNumber > 0) {
+            stmt.addTag(new LineNumberTag(lineNumber));
+        }
+        return stmt;
+    }
+
+    private JimpleBody createDummyBody(Unit... units) {
+        SootClass dummyClass = new SootClass("DummyAnalysisClass", SootClass.BODIES);
+        SootMethod dummyMethod = new SootMethod("dummyMethod", Collections.emptyList(), VoidType.v());
+        dummyClass.addMethod(dummyMethod);
+        JimpleBody body = Jimple.v().newBody(dummyMethod);
+        Collections.addAll(body.getUnits(), units);
+        return body;
+    }
+
+    @Test
+    public void testResultsAreSharedUntilTheBodyChanges() {
+        Unit first = createDummyStmt("a", 12);
+        JimpleBody body = createDummyBody(first, createDummyStmt("b", 10));
+
+        BodyAnalysis analysis = BodyAnalysis.of(body);
+        assertSame(analysis, BodyAnalysis.of(body));
+        assertArrayEquals(new int[]{10, 12}, analysis.lines());
+        assertSame("Graph is reused while the body is unchanged", analysis.graph(), analysis.graph());
+
+        body.getUnits().insertBefore(createDummyStmt("probe", -1), first);
+        analysis.lineNeutralEdit();
+        assertArrayEquals(new int[]{10, 12}, analysis.lines());
+        assertEquals("Graph sees the inserted statement", 3, analysis.graph().size());
+
+        body.getUnits().add(createDummyStmt("c", 20));
+        assertArrayEquals(new int[]{10, 12, 20}, analysis.lines());
+    }
+}
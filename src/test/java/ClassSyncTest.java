@@ -0,0 +1,47 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ClassSyncTest {
+
+    private static void write(Path file, int content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{(byte) content});
+    }
+
+    @Test
+    public void testSyncAndRestore() throws IOException {
+        Path module = Files.createTempDirectory("sync-test");
+        Path runtime = Files.createTempDirectory("runtime");
+        write(module.resolve("target/classes/a/X.class"), 1);
+        write(module.resolve("target/classes/a/Y.class"), 2);
+        Files.createDirectories(module.resolve("target/test-classes"));
+        write(module.resolve("instrumented-classes/a/X.class"), 10);
+        write(module.resolve("instrumented-classes/a/X$lambda_0__1.class"), 11);
+        write(runtime.resolve("Logger.class"), 20);
+        write(runtime.resolve("Unrelated.class"), 30);
+
+        assertEquals(3, ClassSync.sync(module, runtime));
+        assertArrayEquals(new byte[]{10}, Files.readAllBytes(module.resolve("target/classes/a/X.class")));
+        assertArrayEquals(new byte[]{11}, Files.readAllBytes(module.resolve("target/classes/a/X$lambda_0__1.class")));
+        assertArrayEquals(new byte[]{20}, Files.readAllBytes(module.resolve("target/classes/Logger.class")));
+        assertFalse(Files.exists(module.resolve("target/classes/Unrelated.class")));
+
+        // Syncing again must not back up the instrumented file over the original
+        write(module.resolve("instrumented-classes/a/X.class"), 12);
+        ClassSync.sync(module, runtime);
+        assertArrayEquals(new byte[]{12}, Files.readAllBytes(module.resolve("target/classes/a/X.class")));
+
+        assertEquals(3, ClassSync.restore(module));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(module.resolve("target/classes/a/X.class")));
+        assertArrayEquals(new byte[]{2}, Files.readAllBytes(module.resolve("target/classes/a/Y.class")));
+        assertFalse(Files.exists(module.resolve("target/classes/a/X$lambda_0__1.class")));
+        assertFalse(Files.exists(module.resolve("target/classes/Logger.class")));
+        assertFalse(Files.exists(module.resolve("target/" + ClassSync.MANIFEST)));
+        assertEquals("Nothing left to restore", 0, ClassSync.restore(module));
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.Test;
+import util.LineSpecIndex;
+import util.ProbeOptions;
+import util.ProbeRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class CoverageAgentTest {
+
+    /** Product code for the transform test; the line spec below names its lines. */
+    static class Sample {
+        static int clamp(int x) {
+            if (x < 0) {
+                return 0;
+            }
+            return x;
+        }
+    }
+
+    private static final int IF_LINE = 24;
+    private static final int RETURN_LINE = 27;
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(CoverageAgentTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static byte[] classBytes(String internalName) throws IOException {
+        try (InputStream in = CoverageAgentTest.class.getResourceAsStream("/" + internalName + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static List<String> manifestRows(Path manifest) throws IOException {
+        return Files.readAllLines(manifest, StandardCharsets.UTF_8).stream()
+                .filter(row -> !row.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testParseAgentArgs() {
+        Map<String, String> options = CoverageAgent.parseAgentArgs("lines=spec.txt,cache=/tmp/c,verbose");
+        assertEquals("spec.txt", options.get("lines"));
+        assertEquals("/tmp/c", options.get("cache"));
+        assertEquals("true", options.get("verbose"));
+        assertTrue(CoverageAgent.parseAgentArgs(null).isEmpty());
+        assertTrue(CoverageAgent.parseAgentArgs("").isEmpty());
+    }
+
+    @Test
+    public void testTransformInstrumentsAClassAndEveryJvmKeepsItsProbeIds() throws Exception {
+        Path dir = Files.createTempDirectory("agent-test");
+        Path manifest = dir.resolve(ProbeRegistry.MANIFEST_FILE);
+        String internalName = "CoverageAgentTest$Sample";
+        byte[] original = classBytes(internalName);
+        Map<String, Set<Integer>> lines = Collections.singletonMap("CoverageAgentTest.java",
+                new HashSet<>(Arrays.asList(IF_LINE, RETURN_LINE)));
+
+        List<String> firstRows = null;
+        // Each iteration is one test JVM starting the agent as premain does
+        for (int jvm = 0; jvm < 2; jvm++) {
+            ProbeRegistry probes = new ProbeRegistry();
+            probes.reserveFrom(manifest.resolveSibling(manifest.getFileName() + ".ids"));
+            probes.registerKnown(manifest);
+            CoverageAgent agent = new CoverageAgent(new LineSpecIndex(lines), probes, null, ProbeOptions.DEFAULT,
+                    ClassSync.runtimeClasses().toString(), null, false);
+
+            PrintStream stdout = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            byte[] instrumented;
+            System.setOut(new PrintStream(printed, true));
+            try {
+                instrumented = agent.transform(CoverageAgentTest.class.getClassLoader(), internalName, null, null, original);
+            } finally {
+                System.setOut(stdout);
+            }
+            assertEquals("The test JVM's stdout is left alone", "", printed.toString());
+            assertNotNull("The class is in the line spec", instrumented);
+            assertFalse(Arrays.equals(original, instrumented));
+            Method clamp = new Loader().define("CoverageAgentTest$Sample", instrumented).getDeclaredMethod("clamp", int.class);
+            clamp.setAccessible(true);
+            assertEquals(0, clamp.invoke(null, -5));
+            assertEquals(7, clamp.invoke(null, 7));
+
+            agent.finish(manifest);
+            List<String> rows = manifestRows(manifest);
+            if (firstRows == null) {
+                firstRows = rows;
+            } else {
+                assertEquals("A later JVM reuses the IDs and adds no rows", firstRows, rows);
+            }
+        }
+
+        assertEquals(3, firstRows.size());
+        assertTrue(firstRows.stream().anyMatch(row -> row.endsWith("\tEXERCISED\tCoverageAgentTest.java\t" + IF_LINE + "\t0")));
+        assertTrue(firstRows.stream().anyMatch(row -> row.endsWith("\tEXERCISED\tCoverageAgentTest.java\t" + RETURN_LINE + "\t0")));
+        assertTrue(firstRows.stream().anyMatch(row -> row.contains("\tSUBCONDITION_CHECKED\tCoverageAgentTest.java\t" + IF_LINE + "\t")));
+        assertNull("Test classes are left alone",
+                new CoverageAgent(new LineSpecIndex(lines), new ProbeRegistry(), null, ProbeOptions.DEFAULT,
+                        ClassSync.runtimeClasses().toString(), null, false)
+                        .transform(CoverageAgentTest.class.getClassLoader(), "CoverageAgentTest", null, null, classBytes("CoverageAgentTest")));
+    }
+}
@@ -0,0 +1,188 @@
+import org.junit.Test;
+import util.CoverageLogReader;
+import util.ProbeRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CoverageLogReaderTest {
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeRecord(OutputStream out, String test, int... sortedIds) throws IOException {
+        out.write(1);
+        byte[] name = test.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, name.length);
+        out.write(name);
+        writeVarint(out, sortedIds.length);
+        int previous = 0;
+        for (int id : sortedIds) {
+            writeVarint(out, id - previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void testReadBinaryLog() throws IOException {
+        ProbeRegistry registry = new ProbeRegistry();
+        registry.registerLine("a.X", "a/Foo.java", 10);            // 0
+        registry.registerSubcondition("a.X", "a/Foo.java", 10, 1); // 1
+        for (int i = 0; i < 200; i++) {
+            registry.registerLine("a.X", "a/Bar.java", i);         // 2..201, forces multi-byte deltas
+        }
+
+        File tempFile = File.createTempFile("coverage", ".bin");
+        tempFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            out.write(new byte[]{'S', 'C', 'O', 'V', 1});
+            writeVarint(out, 0); // no embedded manifest
+            writeRecord(out, "<a.FooTest: void testOne()>", 0, 1);
+            writeRecord(out, "<a.FooTest: void testTwo()>", 0, 201);
+        }
+
+        CoverageLogReader reader = new CoverageLogReader(registry);
+        reader.read(tempFile.toPath());
+        StringWriter json = new StringWriter();
+        reader.writeJson(json);
+
+        String expected = "{\n"
+                + "  \"a/Foo.java:10\": {\n"
+                + "    \"exercised\": {\n"
+                + "      \"cnt\": 2,\n"
+                + "      \"testcases\": [\n"
+                + "        \"void testOne()\",\n"
+                + "        \"void testTwo()\"\n"
+                + "      ]\n"
+                + "    },\n"
+                + "    \"subconditions\": {\n"
+                + "      \"1\": {\n"
+                + "        \"cnt\": 1,\n"
+                + "        \"testcases\": [\n"
+                + "          \"void testOne()\"\n"
+                + "        ]\n"
+                + "      }\n"
+                + "    }\n"
+                + "  },\n"
+                + "  \"a/Bar.java:199\": {\n"
+                + "    \"exercised\": {\n"
+                + "      \"cnt\": 1,\n"
+                + "      \"testcases\": [\n"
+                + "        \"void testTwo()\"\n"
+                + "      ]\n"
+                + "    },\n"
+                + "    \"subconditions\": {}\n"
+                + "  }\n"
+                + "}";
+        assertEquals(expected, json.toString());
+    }
+
+    @Test
+    public void testInferredLinesCountAsExercised() throws IOException {
+        ProbeRegistry registry = new ProbeRegistry();
+        int probe = registry.registerLine("a.X", "a/Foo.java", 12);
+        registry.registerInferredLine("a.X", "a/Foo.java", 10, probe);
+        registry.registerLine("a.X", "a/Foo.java", 30);
+
+        File tempFile = File.createTempFile("coverage", ".bin");
+        tempFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            out.write(new byte[]{'S', 'C', 'O', 'V', 1});
+            writeVarint(out, 0);
+            writeRecord(out, "<a.FooTest: void testOne()>", probe);
+        }
+
+        CoverageLogReader reader = new CoverageLogReader(registry);
+        reader.read(tempFile.toPath());
+        StringWriter json = new StringWriter();
+        reader.writeJson(json);
+        assertTrue(json.toString().contains("\"a/Foo.java:12\""));
+        assertTrue(json.toString().contains("\"a/Foo.java:10\""));
+        assertFalse(json.toString().contains("\"a/Foo.java:30\""));
+    }
+
+    @Test
+    public void testIdsPastTheProbeCountOfAGappedManifest() throws IOException {
+        // Two workers, each with a block of IDs: 2 probes, the second one with ID 1024
+        ProbeRegistry registry = ProbeRegistry.parseManifest(Arrays.asList(
+                "0\tEXERCISED\ta/Foo.java\t10\t0",
+                "1024\tEXERCISED\ta/Bar.java\t20\t0"));
+        assertEquals(2, registry.size());
+        assertNull(registry.get(500));
+        assertNull(registry.get(5000));
+
+        File tempFile = File.createTempFile("coverage", ".bin");
+        tempFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            out.write(new byte[]{'S', 'C', 'O', 'V', 1});
+            writeVarint(out, 0);
+            writeRecord(out, "<a.FooTest: void testOne()>", 0, 1024, 5000);
+        }
+
+        CoverageLogReader reader = new CoverageLogReader(registry);
+        reader.read(tempFile.toPath());
+        StringWriter json = new StringWriter();
+        reader.writeJson(json);
+        assertTrue(json.toString().contains("\"a/Foo.java:10\""));
+        assertTrue(json.toString().contains("\"a/Bar.java:20\""));
+    }
+
+    @Test
+    public void testHitCountsFollowTheirTestRecord() throws IOException {
+        ProbeRegistry registry = new ProbeRegistry();
+        int line = registry.registerLine("a.X", "a/Foo.java", 12);
+        int condition = registry.registerSubcondition("a.X", "a/Foo.java", 12, 1);
+
+        File tempFile = File.createTempFile("coverage", ".bin");
+        tempFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            out.write(new byte[]{'S', 'C', 'O', 'V', 1});
+            writeVarint(out, 0);
+            writeRecord(out, "<a.FooTest: void testOne()>", line, condition);
+            // RECORD_COUNTS: two probes, ID deltas and hits
+            out.write(2);
+            writeVarint(out, 2);
+            writeVarint(out, line);
+            writeVarint(out, 300);
+            writeVarint(out, condition - line);
+            writeVarint(out, 7);
+        }
+
+        CoverageLogReader reader = new CoverageLogReader(registry);
+        reader.read(tempFile.toPath());
+        StringWriter json = new StringWriter();
+        reader.writeJson(json);
+        assertEquals("{\n"
+                + "  \"a/Foo.java:12\": {\n"
+                + "    \"exercised\": {\n"
+                + "      \"cnt\": 1,\n"
+                + "      \"testcases\": [\n"
+                + "        \"void testOne()\"\n"
+                + "      ],\n"
+                + "      \"hits\": {\n"
+                + "        \"void testOne()\": 300\n"
+                + "      }\n"
+                + "    },\n"
+                + "    \"subconditions\": {\n"
+                + "      \"1\": {\n"
+                + "        \"cnt\": 1,\n"
+                + "        \"testcases\": [\n"
+                + "          \"void testOne()\"\n"
+                + "        ],\n"
+                + "        \"hits\": {\n"
+                + "          \"void testOne()\": 7\n"
+                + "        }\n"
+                + "      }\n"
+                + "    }\n"
+                + "  }\n"
+                + "}", json.toString());
+    }
+}
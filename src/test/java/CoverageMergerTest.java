@@ -0,0 +1,57 @@
+import org.junit.Test;
+import util.CoverageLogReader;
+import util.CoverageMerger;
+import util.ProbeRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CoverageMergerTest {
+
+    private static Path writePart(Path dir, String name, String test, int probeId) throws IOException {
+        Path part = dir.resolve(name);
+        try (OutputStream out = Files.newOutputStream(part)) {
+            out.write(new byte[]{'S', 'C', 'O', 'V', 1});
+            CoverageLogReaderTest.writeVarint(out, 0);
+            CoverageLogReaderTest.writeRecord(out, test, probeId);
+        }
+        return part;
+    }
+
+    @Test
+    public void testMergeBinaryParts() throws IOException {
+        Path dir = Files.createTempDirectory("coverage");
+        Path first = writePart(dir, "coverage-1-100.bin", "<a.FooTest: void testOne()>", 0);
+        Path second = writePart(dir, "coverage-2-200.bin", "<a.FooTest: void testTwo()>", 1);
+        Path merged = dir.resolve("coverage.bin");
+
+        CoverageMerger.mergeBinary(Arrays.asList(first, second), merged);
+
+        ProbeRegistry registry = new ProbeRegistry();
+        registry.registerLine("a.X", "a/Foo.java", 10);
+        registry.registerLine("a.X", "a/Foo.java", 11);
+        CoverageLogReader reader = new CoverageLogReader(registry);
+        reader.read(merged);
+        StringWriter json = new StringWriter();
+        reader.writeJson(json);
+        assertTrue(json.toString().contains("\"a/Foo.java:10\""));
+        assertTrue(json.toString().contains("\"void testTwo()\""));
+    }
+
+    @Test
+    public void testMergeTextParts() throws IOException {
+        Path dir = Files.createTempDirectory("coverage");
+        Path first = Files.write(dir.resolve("coverage-1-100.log"), "a\nb\n".getBytes(StandardCharsets.UTF_8));
+        Path second = Files.write(dir.resolve("coverage-2-200.log"), "c\n".getBytes(StandardCharsets.UTF_8));
+        Path merged = dir.resolve("coverage.log");
+
+        CoverageMerger.mergeText(Arrays.asList(first, second), merged);
+
+        assertEquals(Arrays.asList("a", "b", "c"), Files.readAllLines(merged, StandardCharsets.UTF_8));
+    }
+}
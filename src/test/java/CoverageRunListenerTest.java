@@ -0,0 +1,52 @@
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoverageRunListenerTest {
+
+    /**
+     * Neither the class nor its methods follow the naming convention TestCodeTransformer relies
+     * on, and nothing here is instrumented; Logger.hit stands in for instrumented product code.
+     */
+    public static class ClampChecks {
+        @Test
+        public void negativeInputIsClamped() {
+            Logger.hit(40);
+            Logger.hit(41);
+        }
+
+        @Test
+        public void positiveInputPasses() {
+            Logger.hit(42);
+        }
+    }
+
+    /** The lines from the START marker of a test up to its END marker. */
+    static List<String> linesOf(List<String> lines, String test) {
+        int start = lines.indexOf(Logger.START_MARKER + test + " ===");
+        int end = lines.indexOf("=== END TEST: " + test + " ===");
+        assertTrue("No START marker for " + test + " in " + lines, start != -1);
+        assertTrue("No END marker after the START marker of " + test + " in " + lines, end > start);
+        return lines.subList(start + 1, end);
+    }
+
+    @Test
+    public void testEveryTestIsBracketedWithItsSignature() {
+        Logger.takePendingLines();
+        JUnitCore core = new JUnitCore();
+        core.addListener(new CoverageRunListener());
+        Result result = core.run(ClampChecks.class);
+        assertTrue(result.wasSuccessful());
+
+        List<String> lines = Logger.takePendingLines();
+        assertEquals(Arrays.asList("{event: PROBE, id: 40}", "{event: PROBE, id: 41}"),
+                linesOf(lines, "<CoverageRunListenerTest$ClampChecks: void negativeInputIsClamped()>"));
+        assertEquals(Collections.singletonList("{event: PROBE, id: 42}"),
+                linesOf(lines, "<CoverageRunListenerTest$ClampChecks: void positiveInputPasses()>"));
+        assertEquals("Only the two tests are in the log", 2 * 2 + 3, lines.size());
+    }
+}
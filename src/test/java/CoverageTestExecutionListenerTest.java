@@ -0,0 +1,69 @@
+import org.junit.Test;
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.TestSource;
+import org.junit.platform.engine.UniqueId;
+import org.junit.platform.engine.support.descriptor.AbstractTestDescriptor;
+import org.junit.platform.engine.support.descriptor.ClassSource;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.TestIdentifier;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoverageTestExecutionListenerTest {
+
+    private static class Descriptor extends AbstractTestDescriptor {
+        private final Type type;
+
+        Descriptor(String uniqueId, String displayName, TestSource source, Type type) {
+            super(UniqueId.forEngine("test-engine").append("node", uniqueId), displayName, source);
+            this.type = type;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+    }
+
+    private static TestIdentifier test(String className, String methodName) {
+        return TestIdentifier.from(new Descriptor(methodName, methodName + "()",
+                MethodSource.from(className, methodName), Descriptor.Type.TEST));
+    }
+
+    @Test
+    public void testEveryTestIsBracketedWithItsSignature() {
+        CoverageTestExecutionListener listener = new CoverageTestExecutionListener();
+        TestIdentifier container = TestIdentifier.from(new Descriptor("ClampSpec", "ClampSpec",
+                ClassSource.from("a.ClampSpec"), Descriptor.Type.CONTAINER));
+        // Neither name follows the naming convention; nothing here is instrumented
+        TestIdentifier clamped = test("a.ClampSpec", "negativeInputIsClamped");
+        TestIdentifier passes = test("a.ClampSpec", "positiveInputPasses");
+        TestIdentifier dynamic = TestIdentifier.from(new Descriptor("dynamic", "generated case", null, Descriptor.Type.TEST));
+
+        Logger.takePendingLines();
+        listener.executionStarted(container);
+        Logger.hit(50);
+        listener.executionStarted(clamped);
+        Logger.hit(51);
+        Logger.hit(52);
+        listener.executionFinished(clamped, TestExecutionResult.successful());
+        listener.executionStarted(passes);
+        Logger.hit(53);
+        listener.executionFinished(passes, TestExecutionResult.failed(new AssertionError()));
+        listener.executionStarted(dynamic);
+        Logger.hit(54);
+        listener.executionFinished(dynamic, TestExecutionResult.successful());
+        listener.executionFinished(container, TestExecutionResult.successful());
+
+        List<String> lines = Logger.takePendingLines();
+        assertEquals(Arrays.asList("{event: PROBE, id: 51}", "{event: PROBE, id: 52}"),
+                CoverageRunListenerTest.linesOf(lines, "<a.ClampSpec: void negativeInputIsClamped()>"));
+        assertEquals("A failed test is ended as well", Collections.singletonList("{event: PROBE, id: 53}"),
+                CoverageRunListenerTest.linesOf(lines, "<a.ClampSpec: void positiveInputPasses()>"));
+        assertEquals(Collections.singletonList("{event: PROBE, id: 54}"),
+                CoverageRunListenerTest.linesOf(lines, "<" + dynamic.getUniqueId() + ": void generated case()>"));
+        assertEquals("Containers start no test of their own", 3 * 2 + 4, lines.size());
+    }
+}
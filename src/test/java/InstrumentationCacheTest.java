@@ -0,0 +1,107 @@
+import org.junit.Test;
+import soot.options.Options;
+import util.InstrumentationCache;
+import util.LineSpecIndex;
+import util.ProbeRegistry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationCacheTest {
+
+    @Test
+    public void testUnchangedClassIsRestoredWithItsProbes() throws IOException {
+        Path root = Files.createTempDirectory("cache-test");
+        Path input = root.resolve("in");
+        Path output = root.resolve("out");
+        Files.createDirectories(input.resolve("a"));
+        Files.write(input.resolve("a/X.class"), new byte[]{1, 2, 3});
+
+        Map<String, Set<Integer>> lines = new HashMap<>();
+        lines.put("a/X.java", new HashSet<>(Arrays.asList(4, 5)));
+        InstrumentationCache cache = new InstrumentationCache(root.resolve("cache"), "mode=class", new LineSpecIndex(lines));
+        Map<Integer, Path> outputs = Collections.singletonMap(Options.output_format_class, output);
+        List<String> classes = Collections.singletonList("a.X");
+
+        ProbeRegistry first = new ProbeRegistry();
+        InstrumentationCache.Plan plan = cache.restore(input, classes, root, outputs, "T", first);
+        assertTrue(plan.hits.isEmpty());
+        assertEquals(Collections.singleton("a.X"), plan.misses.keySet());
+
+        int id = first.registerLine("a.X", "a/X.java", 4);
+        Files.createDirectories(output.resolve("a"));
+        Files.write(output.resolve("a/X.class"), new byte[]{9});
+        Files.write(output.resolve("a/X$run__1.class"), new byte[]{8});
+        cache.store(plan, root, outputs, Arrays.asList("a.X", "a.X$run__1"), first);
+
+        Files.delete(output.resolve("a/X.class"));
+        Files.delete(output.resolve("a/X$run__1.class"));
+        ProbeRegistry second = new ProbeRegistry();
+        plan = cache.restore(input, classes, root, outputs, "T", second);
+        assertEquals(Collections.singleton("a.X"), plan.hits);
+        assertArrayEquals(new byte[]{9}, Files.readAllBytes(output.resolve("a/X.class")));
+        assertArrayEquals("Synthesized classes come back with their outer class",
+                new byte[]{8}, Files.readAllBytes(output.resolve("a/X$run__1.class")));
+        assertEquals(4, second.get(id).line);
+
+        lines.get("a/X.java").add(6);
+        cache = new InstrumentationCache(root.resolve("cache"), "mode=class", new LineSpecIndex(lines));
+        plan = cache.restore(input, classes, root, outputs, "T", new ProbeRegistry());
+        assertTrue("A changed line spec invalidates the entry", plan.hits.isEmpty());
+    }
+
+    @Test
+    public void testReinstrumentedClassKeepsItsIds() throws IOException {
+        Path root = Files.createTempDirectory("cache-test");
+        Path input = root.resolve("in");
+        Path output = root.resolve("out");
+        Files.createDirectories(input.resolve("a"));
+        Files.write(input.resolve("a/X.class"), new byte[]{1, 2, 3});
+        Files.createDirectories(root.resolve("cache"));
+        Map<Integer, Path> outputs = Collections.singletonMap(Options.output_format_class, output);
+        List<String> classes = Collections.singletonList("a.X");
+
+        Map<String, Set<Integer>> lines = new HashMap<>();
+        lines.put("a/X.java", new HashSet<>(Arrays.asList(4, 5)));
+        InstrumentationCache cache = new InstrumentationCache(root.resolve("cache"), "mode=class", new LineSpecIndex(lines));
+        ProbeRegistry first = new ProbeRegistry();
+        first.reserveFrom(cache.probeCounter());
+        InstrumentationCache.Plan plan = cache.restore(input, classes, root, outputs, "T", first);
+        int four = first.registerLine("a.X", "a/X.java", 4);
+        int five = first.registerLine("a.X", "a/X.java", 5);
+        int lambda = first.registerLine("a.X$run__1", "a/X.java", 9);
+        cache.store(plan, root, outputs, Arrays.asList("a.X", "a.X$run__1"), first);
+        first.releaseReserved();
+
+        // A new line spec misses the cache; the class is instrumented again with its old IDs
+        lines.get("a/X.java").add(6);
+        cache = new InstrumentationCache(root.resolve("cache"), "mode=class", new LineSpecIndex(lines));
+        ProbeRegistry second = new ProbeRegistry();
+        second.reserveFrom(cache.probeCounter());
+        plan = cache.restore(input, classes, root, outputs, "T", second);
+        assertTrue(plan.hits.isEmpty());
+        Set<Integer> reused = new HashSet<>(Arrays.asList(
+                second.registerLine("a.X", "a/X.java", 6),
+                second.registerLine("a.X", "a/X.java", 5),
+                second.registerLine("a.X$run__1", "a/X.java", 9)));
+        assertEquals(new HashSet<>(Arrays.asList(four, five, lambda)), reused);
+        int fresh = second.registerLine("a.X", "a/X.java", 4);
+        assertEquals("Only a probe beyond the old ones takes a fresh ID", 3, fresh);
+        cache.store(plan, root, outputs, Arrays.asList("a.X", "a.X$run__1"), second);
+        second.releaseReserved();
+
+        // Nothing changed: every class hits and no ID is reserved
+        ProbeRegistry third = new ProbeRegistry();
+        third.reserveFrom(cache.probeCounter());
+        plan = cache.restore(input, classes, root, outputs, "T", third);
+        assertEquals(Collections.singleton("a.X"), plan.hits);
+        assertEquals(4, third.size());
+        third.releaseReserved();
+        assertArrayEquals("The counter stops at the highest ID used", new byte[]{0, 0, 0, 4},
+                Files.readAllBytes(cache.probeCounter()));
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.Test;
+import util.JarFiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JarFilesTest {
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            byte[] data = new byte[(int) zip.getEntry(name).getSize()];
+            int n = 0;
+            while (n < data.length) n += in.read(data, n, data.length - n);
+            return data;
+        }
+    }
+
+    @Test
+    public void testRewriteReplacesAndAddsEntriesAndKeepsTheRest() throws IOException {
+        Path dir = Files.createTempDirectory("jar-test");
+        Path jar = dir.resolve("app.jar");
+        byte[] text = "unchanged resource, repeated repeated repeated".getBytes("UTF-8");
+        try (OutputStream file = Files.newOutputStream(jar); ZipOutputStream out = new ZipOutputStream(file)) {
+            out.putNextEntry(new ZipEntry("a/"));
+            out.putNextEntry(new ZipEntry("a/X.class"));
+            out.write(new byte[]{1, 2, 3});
+            out.putNextEntry(new ZipEntry("a/Y.class"));
+            out.write(new byte[]{4, 5});
+            ZipEntry stored = new ZipEntry("res.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(text.length);
+            CRC32 crc = new CRC32();
+            crc.update(text);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(text);
+        }
+        assertEquals(Arrays.asList("a.X", "a.Y"), JarFiles.listClasses(jar));
+
+        Map<String, byte[]> replacements = new LinkedHashMap<>();
+        replacements.put("a/X.class", new byte[]{9, 9, 9, 9});
+        replacements.put("a/X$1.class", new byte[]{7});
+        Path output = dir.resolve("out/app-instrumented.jar");
+        assertEquals(1, JarFiles.rewrite(jar, output, replacements));
+
+        try (ZipFile original = new ZipFile(jar.toFile()); ZipFile rewritten = new ZipFile(output.toFile())) {
+            assertArrayEquals(new byte[]{9, 9, 9, 9}, read(rewritten, "a/X.class"));
+            assertArrayEquals(new byte[]{7}, read(rewritten, "a/X$1.class"));
+            assertArrayEquals(new byte[]{4, 5}, read(rewritten, "a/Y.class"));
+            assertArrayEquals(text, read(rewritten, "res.txt"));
+            assertEquals(ZipEntry.STORED, rewritten.getEntry("res.txt").getMethod());
+            assertEquals(original.getEntry("a/Y.class").getCompressedSize(), rewritten.getEntry("a/Y.class").getCompressedSize());
+            assertNotNull(rewritten.getEntry("a/"));
+            assertEquals(5, rewritten.size());
+        }
+
+        // In place, e.g. for a second round of instrumentation
+        JarFiles.rewrite(output, output, Collections.singletonMap("a/Y.class", new byte[]{6}));
+        try (ZipFile rewritten = new ZipFile(output.toFile())) {
+            assertArrayEquals(new byte[]{6}, read(rewritten, "a/Y.class"));
+            assertArrayEquals(new byte[]{7}, read(rewritten, "a/X$1.class"));
+        }
+    }
+}
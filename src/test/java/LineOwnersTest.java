@@ -0,0 +1,99 @@
+import org.junit.Test;
+import soot.IntType;
+import soot.RefType;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.VoidType;
+import util.LineOwners;
+import util.LineSpecIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.function.IntSupplier;
+
+import static org.junit.Assert.*;
+
+public class LineOwnersTest {
+
+    /** The tests below refer to its lines by number. */
+    static class Sample {
+        int field = 1;
+
+        Sample() {
+        }
+
+        Sample(int value) {
+            field = value;
+        }
+
+        IntSupplier supplier() {
+            return () -> field;
+        }
+
+        void increment() {
+            field++;
+        }
+
+        int after() { return field; }
+    }
+
+    private static final String CLASS = "LineOwnersTest$Sample";
+
+    private static byte[] classBytes() throws IOException {
+        try (InputStream in = LineOwnersTest.class.getResourceAsStream("/" + CLASS + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static LineOwners ownersOf(Integer... lines) throws IOException {
+        LineOwners owners = new LineOwners(new LineSpecIndex(Collections.singletonMap("LineOwnersTest.java",
+                new HashSet<>(Arrays.asList(lines)))));
+        owners.add(CLASS, classBytes());
+        return owners;
+    }
+
+    private static SootMethod method(String name, List<Type> parameters, Type returnType) {
+        SootClass sootClass = new SootClass(CLASS);
+        SootMethod method = new SootMethod(name, parameters, returnType);
+        sootClass.addMethod(method);
+        return method;
+    }
+
+    @Test
+    public void testEveryConstructorKeepsTheFieldInitializerLine() throws IOException {
+        LineOwners owners = ownersOf(23);
+        assertTrue(owners.owns(method("<init>", Collections.emptyList(), VoidType.v()), 23));
+        assertTrue(owners.owns(method("<init>", Collections.singletonList(IntType.v()), VoidType.v()), 23));
+    }
+
+    @Test
+    public void testTheLambdaDeclarationLineGoesToTheEnclosingMethod() throws IOException {
+        LineOwners owners = ownersOf(33);
+        assertTrue(owners.owns(method("supplier", Collections.emptyList(), RefType.v("java.util.function.IntSupplier")), 33));
+        assertFalse(owners.owns(method("lambda$supplier$0", Collections.emptyList(), IntType.v()), 33));
+    }
+
+    @Test
+    public void testALineNextToTwoMethodsGoesToOneOfThem() throws IOException {
+        // Line 39 is blank: increment returns on 38 and after is all on 40
+        LineOwners owners = ownersOf(39);
+        assertTrue(owners.owns(method("increment", Collections.emptyList(), VoidType.v()), 39));
+        assertFalse(owners.owns(method("after", Collections.emptyList(), IntType.v()), 39));
+    }
+
+    @Test
+    public void testClassesThatWereNotScannedKeepEveryLine() throws IOException {
+        SootClass other = new SootClass("LineOwnersTest$Other");
+        SootMethod method = new SootMethod("run", Collections.emptyList(), VoidType.v());
+        other.addMethod(method);
+        assertTrue(ownersOf(33).owns(method, 33));
+    }
+}
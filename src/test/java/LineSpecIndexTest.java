@@ -0,0 +1,58 @@
+import org.junit.Test;
+import util.LineSpecIndex;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LineSpecIndexTest {
+
+    @Test
+    public void testLinesForMatchesSpecPathsEitherWay() {
+        Map<String, Set<Integer>> spec = new HashMap<>();
+        spec.put("module/src/main/java/a/b/Foo.java", new HashSet<>(Arrays.asList(30, 10, 20)));
+        spec.put("c/Bar.java", Collections.singleton(5));
+        LineSpecIndex index = new LineSpecIndex(spec);
+
+        assertArrayEquals(new int[]{10, 20, 30}, index.linesFor("a.b.Foo"));
+        assertArrayEquals(new int[]{5}, index.linesFor("x.c.Bar"));
+        assertEquals(0, index.linesFor("a.b.Other").length);
+        assertEquals("Same file name, different package", 0, index.linesFor("z.Foo").length);
+    }
+
+    @Test
+    public void testNestedClassesResolveToTheirSourceFile() {
+        Map<String, Set<Integer>> spec = new HashMap<>();
+        spec.put("a/b/Foo.java", Collections.singleton(7));
+        LineSpecIndex index = new LineSpecIndex(spec);
+
+        assertEquals("a/b/Foo.java", LineSpecIndex.sourceFile("a.b.Foo$Inner$1"));
+        assertTrue(index.touches("a.b.Foo$1"));
+        assertTrue(index.touches("a.b.Foo$Inner"));
+        assertFalse(index.touches("a.b.FooBar"));
+    }
+
+    @Test
+    public void testMatchAllowsOneLineOffset() {
+        int[] requested = {1, 9, 12, 20, 40};
+        int[] body = {10, 11, 13, 21};
+
+        assertArrayEquals(new int[]{9, 12, 20}, LineSpecIndex.match(requested, body));
+        assertEquals(0, LineSpecIndex.match(requested, new int[0]).length);
+    }
+
+    @Test
+    public void testFirstEntryInSpecOrderWinsAndUnmatchedPathsAreReported() {
+        Map<String, Set<Integer>> spec = new LinkedHashMap<>();
+        spec.put("a/b/Foo.java", Collections.singleton(1));
+        spec.put("b/Foo.java", Collections.singleton(2));
+        spec.put("alc.java", Collections.singleton(3));
+        spec.put("Missing.java", Collections.singleton(4));
+        LineSpecIndex index = new LineSpecIndex(spec);
+
+        assertArrayEquals(new int[]{1}, index.linesFor("a.b.Foo"));
+        assertEquals(0, index.linesFor("demo.Calc").length);
+        assertEquals(Arrays.asList("b/Foo.java", "alc.java", "Missing.java"),
+                index.unmatchedPaths(Arrays.asList("a.b.Foo", "a.b.Foo$1", "demo.Calc")));
+    }
+}
@@ -1,6 +1,10 @@
 import org.junit.Test;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -27,4 +31,345 @@ public class LoggerTest {
         assertEquals("1", result.get("index"));
         assertEquals(4, result.size()); // 4 keys expected
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testProbeSetAddAndClear() {
+        Logger.ProbeSet set = new Logger.ProbeSet();
+        assertTrue(set.add(3));
+        assertFalse("Second add of the same probe should report seen", set.add(3));
+        assertTrue(set.add(5000)); // grows past the initial words
+        assertTrue(set.get(3));
+        assertTrue(set.get(5000));
+        assertFalse(set.get(4));
+
+        set.clear();
+        assertFalse(set.get(3));
+        assertFalse(set.get(5000));
+        assertTrue("Cleared probe should be new again", set.add(5000));
+    }
+
+    /** The lines a test case ended with: its START marker up to the next test's. */
+    private static List<String> linesOf(List<String> lines, String test) {
+        int start = lines.indexOf(Logger.START_MARKER + test + " ===");
+        assertTrue("No START marker for " + test, start != -1);
+        int end = start + 1;
+        while (end < lines.size() && !lines.get(end).startsWith(Logger.START_MARKER)) {
+            end++;
+        }
+        return lines.subList(start, end);
+    }
+
+    private static Set<Integer> probesOf(List<String> lines, String test) {
+        Set<Integer> probes = new TreeSet<>();
+        for (String line : linesOf(lines, test)) {
+            if (line.startsWith("{event: PROBE, id: ")) {
+                assertTrue("Probe listed twice in " + test + ": " + line,
+                        probes.add(Integer.parseInt(line.replaceAll("\\D", ""))));
+            }
+        }
+        return probes;
+    }
+
+    private static Set<Integer> set(Integer... ids) {
+        return new TreeSet<>(Arrays.asList(ids));
+    }
+
+    private static Thread start(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testParallelTestsKeepSeparateHits() throws InterruptedException {
+        Logger.takePendingLines();
+        String first = Logger.testSignature("a.ParallelTest", "first");
+        String second = Logger.testSignature("a.ParallelTest", "second");
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch hit = new CountDownLatch(2);
+
+        // Both tests are running while either of them hits
+        Thread a = start(() -> {
+            Logger.startTest(first);
+            started.countDown();
+            await(started);
+            Logger.hit(1);
+            Logger.hit(2);
+            hit.countDown();
+            await(hit);
+            Logger.endTest(first);
+        });
+        Thread b = start(() -> {
+            Logger.startTest(second);
+            started.countDown();
+            await(started);
+            Logger.hit(2);
+            Logger.hit(3);
+            hit.countDown();
+            await(hit);
+            Logger.endTest(second);
+        });
+        a.join();
+        b.join();
+
+        List<String> lines = Logger.takePendingLines();
+        assertEquals(set(1, 2), probesOf(lines, first));
+        assertEquals(set(2, 3), probesOf(lines, second));
+    }
+
+    @Test
+    public void testChildThreadInheritsItsParentsTest() throws InterruptedException {
+        Logger.takePendingLines();
+        String parent = Logger.testSignature("a.InheritTest", "parent");
+        String other = Logger.testSignature("a.InheritTest", "other");
+        CountDownLatch otherStarted = new CountDownLatch(1);
+        CountDownLatch parentDone = new CountDownLatch(1);
+
+        Thread test = start(() -> {
+            Logger.startTest(parent);
+            Logger.hit(10);
+            await(otherStarted);
+            // Started after another test became the most recent one, still in this one
+            Thread child = start(() -> Logger.hit(11));
+            try {
+                child.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            Logger.endTest(parent);
+            parentDone.countDown();
+        });
+        Thread otherTest = start(() -> {
+            Logger.startTest(other);
+            otherStarted.countDown();
+            await(parentDone);
+            Logger.endTest(other);
+        });
+        test.join();
+        otherTest.join();
+
+        List<String> lines = Logger.takePendingLines();
+        assertEquals(set(10, 11), probesOf(lines, parent));
+        assertEquals(set(), probesOf(lines, other));
+    }
+
+    @Test
+    public void testWrapCarriesTheTestIntoAnExecutorTask() throws Exception {
+        Logger.takePendingLines();
+        String wrapped = Logger.testSignature("a.WrapTest", "wrapped");
+        String latest = Logger.testSignature("a.WrapTest", "latest");
+        // The pool thread exists before either test starts, so it inherits neither
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> { }).get();
+            CountDownLatch wrappedStarted = new CountDownLatch(1);
+            CountDownLatch latestStarted = new CountDownLatch(1);
+            CountDownLatch wrappedDone = new CountDownLatch(1);
+            Thread test = start(() -> {
+                Logger.startTest(wrapped);
+                wrappedStarted.countDown();
+                await(latestStarted);
+                try {
+                    executor.submit(Logger.wrap(() -> Logger.hit(20))).get();
+                    executor.submit(Logger.wrap(() -> {
+                        Logger.hit(21);
+                        return null;
+                    })).get();
+                    // Unwrapped, the task counts for the pool thread's own (or the most recent) test
+                    executor.submit(() -> Logger.hit(22)).get();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                Logger.endTest(wrapped);
+                wrappedDone.countDown();
+            });
+            await(wrappedStarted);
+            Logger.startTest(latest);
+            latestStarted.countDown();
+            await(wrappedDone);
+            Logger.endTest(latest);
+            test.join();
+        } finally {
+            executor.shutdown();
+        }
+
+        List<String> lines = Logger.takePendingLines();
+        assertEquals(set(20, 21), probesOf(lines, wrapped));
+        Set<Integer> latestProbes = probesOf(lines, latest);
+        assertFalse("The most recent test gets none of the wrapped hits",
+                latestProbes.contains(20) || latestProbes.contains(21));
+    }
+
+    /** Records what it writes; holds the first batch until released, so the queue fills up. */
+    private static class StalledWriter extends Logger.AsyncWriter {
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        /** Writing "1", with "2" waiting in a queue of one. */
+        StalledWriter(String policy) {
+            super(1, policy);
+            submit(batch("1"));
+            await(writing);
+            submit(batch("2"));
+        }
+
+        @Override
+        void write(Logger.Batch batch) {
+            writing.countDown();
+            await(release);
+            written.addAll(batch.lines);
+        }
+    }
+
+    private static Logger.Batch batch(String line) {
+        return new Logger.Batch(Collections.singletonList(line), null);
+    }
+
+    @Test
+    public void testBlockPolicyWaitsForSpace() throws InterruptedException {
+        StalledWriter writer = new StalledWriter("block");
+        Thread submitter = start(() -> writer.submit(batch("3")));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (submitter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("The submitter waits while the queue is full", Thread.State.WAITING, submitter.getState());
+
+        writer.release.countDown();
+        submitter.join();
+        writer.drainAndStop();
+        assertEquals(Arrays.asList("1", "2", "3"), writer.written);
+        assertEquals(0, writer.dropped());
+    }
+
+    @Test
+    public void testDropPolicyDiscardsAndCounts() {
+        StalledWriter writer = new StalledWriter("drop");
+        writer.submit(batch("3"));
+        assertEquals(1, writer.dropped());
+
+        writer.release.countDown();
+        writer.drainAndStop();
+        assertEquals(Arrays.asList("1", "2"), writer.written);
+    }
+
+    @Test
+    public void testSpillPolicyKeepsOrderAndShutdownDrainsEverything() throws InterruptedException {
+        StalledWriter writer = new StalledWriter("spill");
+        writer.submit(batch("3"));
+        writer.submit(batch("4"));
+        assertEquals(0, writer.dropped());
+
+        // Shutdown starts while batches are still queued and spilled, and returns once all are written
+        Thread stopper = start(writer::drainAndStop);
+        writer.release.countDown();
+        stopper.join();
+        assertEquals(Arrays.asList("1", "2", "3", "4"), writer.written);
+    }
+
+    @Test
+    public void testHitsFromManyThreadsAreMergedOnce() throws InterruptedException {
+        Logger.takePendingLines();
+        String test = Logger.testSignature("a.ConcurrentTest", "many");
+        int threads = 8;
+        CountDownLatch hit = new CountDownLatch(threads);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Logger.startTest(test);
+        List<Thread> workers = new ArrayList<>();
+        Set<Integer> expected = new TreeSet<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * 10;
+            for (int id = first; id < first + 20; id++) {
+                expected.add(id); // overlaps the next thread's IDs
+            }
+            workers.add(start(() -> {
+                for (int round = 0; round < 1000; round++) {
+                    for (int id = first; id < first + 20; id++) {
+                        Logger.hit(id);
+                    }
+                }
+                hit.countDown();
+                await(release);
+            }));
+        }
+        await(hit);
+        // The workers are still alive; their buffered hits are merged when the test ends
+        Logger.endTest(test);
+        release.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(expected, probesOf(Logger.takePendingLines(), test));
+    }
+
+    private static Map<Integer, Long> countsOf(List<String> lines, String test) {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (String line : linesOf(lines, test)) {
+            if (line.startsWith("{event: PROBE_COUNT, id: ")) {
+                Map<String, String> fields = Logger.parseSimpleJsonToMap(line);
+                assertNull("Probe counted twice in " + test + ": " + line,
+                        counts.put(Integer.parseInt(fields.get("id")), Long.parseLong(fields.get("count"))));
+            }
+        }
+        return counts;
+    }
+
+    @Test
+    public void testCountsOfAllThreadsAddUpPerTest() throws InterruptedException {
+        Logger.takePendingLines();
+        String first = Logger.testSignature("a.CountTest", "first");
+        String second = Logger.testSignature("a.CountTest", "second");
+        int threads = 4;
+        CountDownLatch counted = new CountDownLatch(threads);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Logger.startTest(first);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int extra = t + 1;
+            workers.add(start(() -> {
+                for (int i = 0; i < 2500; i++) {
+                    Logger.count(30);
+                }
+                for (int i = 0; i < extra; i++) {
+                    Logger.count(31);
+                }
+                counted.countDown();
+                await(release);
+            }));
+        }
+        await(counted);
+        Logger.count(31);
+        Logger.endTest(first);
+        release.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // The next test counts from zero again
+        Logger.startTest(second);
+        for (int i = 0; i < 3; i++) {
+            Logger.count(30);
+        }
+        Logger.endTest(second);
+
+        List<String> lines = Logger.takePendingLines();
+        Map<Integer, Long> expected = new TreeMap<>();
+        expected.put(30, 10000L);
+        expected.put(31, 11L);
+        assertEquals(expected, countsOf(lines, first));
+        assertEquals(set(30, 31), probesOf(lines, first));
+        assertEquals(Collections.singletonMap(30, 3L), countsOf(lines, second));
+    }
+}
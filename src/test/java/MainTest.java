@@ -1,8 +1,19 @@
 import org.junit.Test;
+import util.LineSpecIndex;
+import util.ProbeOptions;
+import util.ProbeRegistry;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.IntUnaryOperator;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 
 public class MainTest {
 
@@ -42,4 +53,162 @@ public class MainTest {
         assertTrue("The set should contain line 101", secondFileLines.contains(101));
         assertTrue("The set should contain line 102", secondFileLines.contains(102));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseOptions() {
+        String[] args = {"root", "lines.txt", "fields.txt", "JIMPLE", "--tests=listener", "--verbose"};
+        Map<String, String> options = Main.parseOptions(args);
+        assertEquals("jimple", options.get("mode"));
+        assertEquals("listener", options.get("tests"));
+        assertEquals("true", options.get("verbose"));
+        assertTrue(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt"}).isEmpty());
+    }
+
+    @Test
+    public void testParseProbeOptions() {
+        ProbeOptions defaults = ProbeOptions.parse(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt"}));
+        assertFalse(defaults.minimal);
+        assertTrue(defaults.onceInLoops);
+
+        ProbeOptions options = ProbeOptions.parse(Main.parseOptions(
+                new String[]{"root", "lines.txt", "fields.txt", "--probes=minimal", "--loop-probes=every"}));
+        assertTrue(options.minimal);
+        assertFalse(options.onceInLoops);
+        assertEquals("probes=minimal|loop-probes=every|probe-arrays=false|hit-counts=false", options.fingerprint());
+
+        ProbeOptions counts = ProbeOptions.parse(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt", "--hit-counts"}));
+        assertTrue(counts.hitCounts);
+        assertFalse("counting needs every iteration", counts.onceInLoops);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseProbeOptionsRejectsUnknownValues() {
+        ProbeOptions.parse(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt", "--loop-probes=twice"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHitCountsRejectGuardedProbes() {
+        ProbeOptions.parse(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt", "--hit-counts", "--probe-arrays"}));
+    }
+
+    @Test
+    public void testParseIntOption() {
+        Map<String, String> options = Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt", "--threads=4", "--bad=-1", "--word=many"});
+        assertEquals(4, Main.parseIntOption(options, "threads", 0, 0));
+        assertEquals("absent options keep their default", 1, Main.parseIntOption(options, "jobs", 1, 1));
+        for (String name : Arrays.asList("bad", "word")) {
+            try {
+                Main.parseIntOption(options, name, 0, 0);
+                fail("--" + name + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Invalid --" + name + ": "));
+            }
+        }
+    }
+
+    /** Product code for the hit-count test: the lambda is declared and run on LAMBDA_LINE. */
+    static class LambdaSample {
+        static int twice(int x) {
+            IntUnaryOperator doubler = y -> y * 2;
+            return doubler.applyAsInt(x);
+        }
+    }
+
+    private static final int LAMBDA_LINE = 112;
+
+    private static class ClassesLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        ClassesLoader(Map<String, byte[]> classes) {
+            super(MainTest.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                byte[] bytes = classes.get(name.replace('.', '/') + ".class");
+                if (bytes == null) return super.loadClass(name, resolve);
+                Class<?> loaded = findLoadedClass(name);
+                return loaded != null ? loaded : defineClass(name, bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    @Test
+    public void testLambdaOnARequestedLineIsCountedOncePerExecution() throws Exception {
+        Path module = Files.createTempDirectory("lambda-module");
+        String entry = "MainTest$LambdaSample.class";
+        try (InputStream in = MainTest.class.getResourceAsStream("/" + entry)) {
+            Files.createDirectories(module.resolve("target/classes"));
+            Files.copy(in, module.resolve("target/classes").resolve(entry));
+        }
+        LineSpecIndex lineSpec = new LineSpecIndex(Collections.singletonMap("MainTest.java",
+                Collections.singleton(LAMBDA_LINE)));
+        ProbeRegistry probes = new ProbeRegistry();
+        ProbeOptions hitCounts = ProbeOptions.parse(Main.parseOptions(new String[]{"root", "lines.txt", "fields.txt", "--hit-counts"}));
+
+        Main.instrumentTarget(module.toString(), "classes", "class", false, 1, hitCounts, lineSpec, probes, null,
+                ClassSync.runtimeClasses().toString());
+        Map<String, byte[]> instrumented = new TreeMap<>();
+        Main.collectClassFiles(module.resolve("instrumented-classes"), instrumented);
+        Main.deleteRecursively(module);
+
+        assertEquals(1, probes.size());
+        int probeId = probes.probesOf("MainTest$LambdaSample").get(0).id;
+        Method twice = new ClassesLoader(instrumented).loadClass("MainTest$LambdaSample").getDeclaredMethod("twice", int.class);
+        twice.setAccessible(true);
+        Logger.takePendingLines();
+        String test = Logger.testSignature("a.LambdaTest", "once");
+        Logger.startTest(test);
+        assertEquals(6, twice.invoke(null, 3));
+        Logger.endTest(test);
+
+        List<String> counts = new ArrayList<>();
+        for (String line : Logger.takePendingLines()) {
+            if (line.startsWith("{event: PROBE_COUNT, ")) counts.add(line);
+        }
+        assertEquals(Collections.singletonList("{event: PROBE_COUNT, id: " + probeId + ", count: 1}"), counts);
+    }
+
+    @Test
+    public void testSyncedJarGetsTheSameRuntimeClassesAsATarget() throws Exception {
+        Path dir = Files.createTempDirectory("jar-sync");
+        Path jar = dir.resolve("app.jar");
+        String entry = "MainTest$LambdaSample.class";
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+             InputStream in = MainTest.class.getResourceAsStream("/" + entry)) {
+            out.putNextEntry(new JarEntry(entry));
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+        }
+        LineSpecIndex lineSpec = new LineSpecIndex(Collections.singletonMap("MainTest.java",
+                Collections.singleton(LAMBDA_LINE)));
+        Path runtime = ClassSync.runtimeClasses();
+
+        Path output = dir.resolve("app-instrumented.jar");
+        Main.instrumentJar(jar, output, "class", false, 1, ProbeOptions.DEFAULT, true, lineSpec, new ProbeRegistry(), null,
+                runtime.toString());
+
+        Set<String> expected = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(runtime)) {
+            for (Path file : files) {
+                if (ClassSync.isRuntimeClass(file)) expected.add(file.getFileName().toString());
+            }
+        }
+        assertTrue(expected.contains("CoverageRunListener.class"));
+        assertTrue(expected.contains("CoverageTestExecutionListener.class"));
+        Set<String> added = new TreeSet<>();
+        try (JarFile written = new JarFile(output.toFile())) {
+            for (JarEntry jarEntry : Collections.list(written.entries())) {
+                if (jarEntry.getName().indexOf('/') == -1 && !jarEntry.getName().startsWith("MainTest$LambdaSample")) {
+                    added.add(jarEntry.getName());
+                }
+            }
+        }
+        assertEquals(expected, added);
+        Main.deleteRecursively(dir);
+    }
+}
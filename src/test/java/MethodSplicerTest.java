@@ -0,0 +1,83 @@
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import util.MethodSplicer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MethodSplicerTest {
+
+    static class Sample {
+        int first(int x) {
+            return x + 1;
+        }
+
+        String second(String[] values) {
+            return values[0];
+        }
+    }
+
+    private byte[] bytesOf(Class<?> type) throws IOException {
+        try (InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private byte[] classWithMethod(String name, int returned, boolean withField) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "x/Gen", null, "java/lang/Object", null);
+        if (withField) {
+            writer.visitField(Opcodes.ACC_STATIC, "added", "[Z", null, null).visitEnd();
+        }
+        for (String method : new String[]{name, "other"}) {
+            MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, method, "()I", null, null);
+            mv.visitCode();
+            mv.visitLdcInsn(method.equals(name) ? returned : 0);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    @Test
+    public void testScanLinesRecordsEveryMethod() throws IOException {
+        Map<String, int[]> lines = MethodSplicer.scanLines(bytesOf(Sample.class));
+
+        assertEquals(1, lines.get("int first(int)").length);
+        assertEquals(1, lines.get("java.lang.String second(java.lang.String[])").length);
+        assertTrue(lines.containsKey("void <init>()"));
+    }
+
+    @Test
+    public void testSpliceReplacesOnlyTransformedMethods() {
+        byte[] original = classWithMethod("m", 1, false);
+        byte[] transformed = classWithMethod("m", 2, true);
+
+        ClassNode spliced = new ClassNode();
+        new ClassReader(MethodSplicer.splice(original, transformed)).accept(spliced, 0);
+
+        assertEquals(2, spliced.methods.size());
+        assertEquals("Fields added by the transformers are kept", 1, spliced.fields.size());
+        MethodNode m = spliced.methods.get(0);
+        assertEquals("m", m.name);
+        assertEquals(2, ((org.objectweb.asm.tree.LdcInsnNode) m.instructions.getFirst()).cst);
+        assertTrue(spliced.methods.get(1).instructions.getLast() instanceof InsnNode);
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.Test;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.VoidType;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import util.ModificationTracker;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ModificationTrackerTest {
+
+    private JimpleBody createDummyBody(String className) {
+        SootClass dummyClass = new SootClass(className, SootClass.BODIES);
+        SootMethod dummyMethod = new SootMethod("dummyMethod", Collections.emptyList(), VoidType.v());
+        dummyClass.addMethod(dummyMethod);
+        JimpleBody body = Jimple.v().newBody(dummyMethod);
+        body.getUnits().add(Jimple.v().newReturnVoidStmt());
+        return body;
+    }
+
+    @Test
+    public void testOnlyChangedBodiesMarkTheirClass() {
+        ModificationTracker tracker = new ModificationTracker();
+        JimpleBody untouched = createDummyBody("a.Untouched");
+        JimpleBody changed = createDummyBody("a.Changed");
+
+        tracker.before().transform(untouched);
+        tracker.after().transform(untouched);
+
+        tracker.before().transform(changed);
+        changed.getUnits().addFirst(Jimple.v().newNopStmt());
+        tracker.after().transform(changed);
+
+        assertFalse(tracker.isModified("a.Untouched"));
+        assertTrue(tracker.isModified("a.Changed"));
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import util.ProbeArrays;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+public class ProbeArraysTest {
+
+    /** A class as Soot writes it after ProbeArrays.declare: the field and a native accessor. */
+    private byte[] declaredClass(String internalName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        int modifiers = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+        writer.visitField(modifiers | Opcodes.ACC_TRANSIENT, ProbeArrays.FIELD, "[Z", null, null).visitEnd();
+        writer.visitMethod(modifiers | Opcodes.ACC_NATIVE, ProbeArrays.ACCESSOR, "()[Z", null, null).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(ProbeArraysTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    @Test
+    public void testSlotsPerClass() {
+        ProbeArrays arrays = new ProbeArrays();
+        assertEquals(0, arrays.slot("a.A", 7));
+        assertEquals(1, arrays.slot("a.A", 3));
+        assertEquals("a probe in a second body of the class keeps its slot", 0, arrays.slot("a.A", 7));
+        assertEquals(0, arrays.slot("a.B", 3));
+        assertEquals(2, arrays.size("a.A"));
+        assertEquals(0, arrays.size("a.C"));
+    }
+
+    @Test
+    public void testCompletedAccessorHandsOutOneArrayThatLoggerClears() throws Exception {
+        ProbeArrays arrays = new ProbeArrays();
+        arrays.slot("x.Probed", 10);
+        arrays.slot("x.Probed", 11);
+        arrays.slot("x.Probed", 12);
+
+        byte[] completed = arrays.complete("x.Probed", declaredClass("x/Probed"));
+        Method accessor = new Loader().define("x.Probed", completed).getDeclaredMethod(ProbeArrays.ACCESSOR);
+        accessor.setAccessible(true);
+
+        boolean[] probes = (boolean[]) accessor.invoke(null);
+        assertEquals(3, probes.length);
+        assertSame(probes, accessor.invoke(null));
+
+        probes[1] = true;
+        Logger.resetForNewTestCase();
+        assertFalse("a new test clears the slots", probes[1]);
+    }
+
+    @Test
+    public void testClassWithoutAccessorIsUnchanged() {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "x/Plain", null, "java/lang/Object", null);
+        writer.visitEnd();
+        byte[] plain = writer.toByteArray();
+        assertSame(plain, new ProbeArrays().complete("x.Plain", plain));
+    }
+}
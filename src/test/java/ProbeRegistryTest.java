@@ -0,0 +1,116 @@
+import org.junit.Test;
+import util.ProbeRegistry;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ProbeRegistryTest {
+
+    @Test
+    public void testIdsAreDenseAndDeduplicated() {
+        ProbeRegistry registry = new ProbeRegistry();
+        int line = registry.registerLine("a.X", "a/Foo.java", 10);
+        int sub1 = registry.registerSubcondition("a.X", "a/Foo.java", 10, 1);
+        int sub2 = registry.registerSubcondition("a.X", "a/Foo.java", 10, 2);
+
+        assertEquals(0, line);
+        assertEquals(1, sub1);
+        assertEquals(2, sub2);
+        assertEquals("Same site should keep its ID", line, registry.registerLine("a.X", "a/Foo.java", 10));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testManifestRoundTrip() throws IOException {
+        File tempFile = File.createTempFile("probes", ".manifest");
+        tempFile.deleteOnExit();
+
+        ProbeRegistry registry = new ProbeRegistry();
+        registry.registerLine("a.X", "a/Foo.java", 10);
+        registry.registerSubcondition("a.X", "a/Bar.java", 42, 3);
+        registry.writeManifest(tempFile.toPath());
+
+        ProbeRegistry read = ProbeRegistry.readManifest(tempFile.toPath());
+        assertEquals(2, read.size());
+        ProbeRegistry.Probe probe = read.get(1);
+        assertEquals(ProbeRegistry.SUBCONDITION_CHECKED, probe.kind);
+        assertEquals("a/Bar.java", probe.file);
+        assertEquals(42, probe.line);
+        assertEquals(3, probe.index);
+    }
+
+    @Test
+    public void testInferredLinesSurviveTheManifest() throws IOException {
+        File tempFile = File.createTempFile("probes", ".manifest");
+        tempFile.deleteOnExit();
+
+        ProbeRegistry registry = new ProbeRegistry();
+        int probe = registry.registerLine("a.X", "a/Foo.java", 12);
+        registry.registerInferredLine("a.X", "a/Foo.java", 10, probe);
+        registry.registerInferredLine("a.X", "a/Foo.java", 11, probe);
+        // A line probed in one body and inferred in another keeps both rows
+        registry.registerInferredLine("a.X", "a/Foo.java", 12, registry.registerLine("a.X", "a/Foo.java", 20));
+        registry.writeManifest(tempFile.toPath());
+
+        ProbeRegistry read = ProbeRegistry.readManifest(tempFile.toPath());
+        assertEquals(5, read.size());
+        assertEquals(2, read.inferredFrom(probe).size());
+        assertEquals(10, read.inferredFrom(probe).get(0).line);
+        assertEquals(ProbeRegistry.EXERCISED_INFERRED, read.inferredFrom(probe).get(1).kind);
+        assertTrue(read.inferredFrom(read.inferredFrom(probe).get(0).id).isEmpty());
+    }
+
+    @Test
+    public void testWorkersReserveDisjointIdsAndMerge() throws IOException {
+        File counter = File.createTempFile("probe-ids", "");
+        counter.deleteOnExit();
+        counter.delete();
+
+        ProbeRegistry first = new ProbeRegistry();
+        first.reserveFrom(counter.toPath());
+        ProbeRegistry second = new ProbeRegistry();
+        second.reserveFrom(counter.toPath());
+
+        int a = first.registerLine("a.X", "a/Foo.java", 1);
+        int b = second.registerLine("a.X", "b/Bar.java", 2);
+        int c = first.registerLine("a.X", "a/Foo.java", 3);
+        assertNotEquals(a, b);
+        assertEquals("IDs stay dense within a worker's block", a + 1, c);
+
+        File manifest = File.createTempFile("probes", ".manifest");
+        manifest.deleteOnExit();
+        second.writeManifest(manifest.toPath());
+
+        ProbeRegistry merged = new ProbeRegistry();
+        merged.merge(first);
+        merged.merge(ProbeRegistry.readManifest(manifest.toPath()));
+        assertEquals(3, merged.size());
+        assertEquals("b/Bar.java", merged.get(b).file);
+    }
+
+    @Test
+    public void testJvmsAppendToOneManifest() throws IOException {
+        File dir = java.nio.file.Files.createTempDirectory("agent-manifest").toFile();
+        File counter = new File(dir, "probes.manifest.ids");
+        File manifest = new File(dir, "probes.manifest");
+
+        ProbeRegistry first = new ProbeRegistry();
+        first.reserveFrom(counter.toPath());
+        int a = first.registerLine("a.X", "a/Foo.java", 10);
+        ProbeRegistry second = new ProbeRegistry();
+        second.reserveFrom(counter.toPath());
+        int b = second.registerLine("b.Y", "b/Bar.java", 3);
+
+        first.appendToManifest(manifest.toPath());
+        second.appendToManifest(manifest.toPath());
+        // Appending again (same IDs, same sites) changes nothing
+        first.appendToManifest(manifest.toPath());
+
+        ProbeRegistry combined = ProbeRegistry.readManifest(manifest.toPath());
+        assertEquals(2, combined.size());
+        assertEquals("a/Foo.java", combined.get(a).file);
+        assertEquals("b/Bar.java", combined.get(b).file);
+    }
+}
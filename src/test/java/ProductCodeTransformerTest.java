@@ -1,4 +1,5 @@
 import org.junit.Test;
+import soot.IntType;
 import soot.Unit;
 import soot.jimple.IntConstant;
 import soot.jimple.Jimple;
@@ -10,9 +11,12 @@ import soot.SootMethod;
 import soot.VoidType;
 import soot.jimple.JimpleBody;
 import util.ControlFlowUtil;
+import util.TempVariableUtil;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -79,6 +83,22 @@ public class ProductCodeTransformerTest {
         assertSame("Should fallback backward to line 28 if no forward found", stmt28, result);
     }
 
+    @Test
+    public void testLineIndexAnswersSeveralLines() {
+        Unit stmt10 = createDummyStmt("d", 10);
+        Unit stmt40 = createDummyStmt("e", 40);
+        Unit stmt20 = createDummyStmt("f", 20);
+        UnitGraph cfg = createDummyGraph(Arrays.asList(stmt10, stmt40, stmt20));
+        ControlFlowUtil.LineIndex index = new ControlFlowUtil.LineIndex(cfg);
+        Map<Integer, List<Unit>> map = new HashMap<>();
+
+        assertSame("Forward fallback takes the first later Unit in chain order", stmt40,
+                ControlFlowUtil.findBestStmtUsingCPG(index, map, 15));
+        assertSame(stmt10, ControlFlowUtil.findBestStmtUsingCPG(index, map, 5));
+        assertSame("Backward fallback takes the last earlier Unit in chain order", stmt20,
+                ControlFlowUtil.findBestStmtUsingCPG(index, map, 50));
+    }
+
     @Test
     public void testNoMatchFound() {
         Map<Integer, List<Unit>> map = new HashMap<>();
@@ -87,4 +107,55 @@ public class ProductCodeTransformerTest {
         Unit result = ControlFlowUtil.findBestStmtUsingCPG(cfg, map, 29);
         assertNull("Should return null if no match found at all", result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTempLocalNamesDependOnlyOnTheBody() {
+        SootClass dummyClass = new SootClass("DummyClass2", SootClass.BODIES);
+        SootMethod first = new SootMethod("first", Collections.emptyList(), VoidType.v());
+        SootMethod second = new SootMethod("second", Collections.emptyList(), VoidType.v());
+        dummyClass.addMethod(first);
+        dummyClass.addMethod(second);
+        JimpleBody firstBody = Jimple.v().newBody(first);
+        JimpleBody secondBody = Jimple.v().newBody(second);
+
+        assertEquals("__autogen_1", TempVariableUtil.newLocal(firstBody, "__autogen_", IntType.v()).getName());
+        assertEquals("__autogen_2", TempVariableUtil.newLocal(firstBody, "__autogen_", IntType.v()).getName());
+        assertEquals("_autogen_str_1", TempVariableUtil.newLocal(firstBody, "_autogen_str_", IntType.v()).getName());
+        // Another body starts over, whatever was instrumented before
+        assertEquals("__autogen_1", TempVariableUtil.newLocal(secondBody, "__autogen_", IntType.v()).getName());
+        // Back on the first body, numbering goes on above the locals it already has
+        firstBody.getLocals().add(Jimple.v().newLocal("__autogen_7", IntType.v()));
+        assertEquals("__autogen_8", TempVariableUtil.newLocal(firstBody, "__autogen_", IntType.v()).getName());
+        assertEquals(5, firstBody.getLocalCount());
+    }
+
+    @Test
+    public void testControlEquivalentGroups() {
+        // s1; if (x == 0) goto s4; s3; s4: ...; return
+        Unit s1 = createDummyStmt("g1", 1);
+        Unit s4 = createDummyStmt("g4", 4);
+        Unit branch = Jimple.v().newIfStmt(
+                Jimple.v().newEqExpr(Jimple.v().newLocal("x", IntType.v()), IntConstant.v(0)), s4);
+        Unit s3 = createDummyStmt("g3", 3);
+        UnitGraph cfg = createDummyGraph(Arrays.asList(s1, branch, s3, s4, Jimple.v().newReturnVoidStmt()));
+
+        List<List<Unit>> groups = ControlFlowUtil.controlEquivalentGroups(cfg, Arrays.asList(s4, s3, s1));
+        assertEquals(2, groups.size());
+        assertEquals("s1 always runs before s4 and s4 always after s1", Arrays.asList(s1, s4), groups.get(0));
+        assertEquals(Collections.singletonList(s3), groups.get(1));
+    }
+
+    @Test
+    public void testUnitsInLoops() {
+        // s1; head: if (x == 0) goto exit; s3; goto head; exit: return
+        Unit s1 = createDummyStmt("l1", 1);
+        Unit exit = Jimple.v().newReturnVoidStmt();
+        Unit head = Jimple.v().newIfStmt(
+                Jimple.v().newEqExpr(Jimple.v().newLocal("y", IntType.v()), IntConstant.v(0)), exit);
+        Unit s3 = createDummyStmt("l3", 3);
+        Unit back = Jimple.v().newGotoStmt(head);
+        UnitGraph cfg = createDummyGraph(Arrays.asList(s1, head, s3, back, exit));
+
+        assertEquals(new HashSet<>(Arrays.asList(head, s3, back)), ControlFlowUtil.unitsInLoops(cfg));
+    }
+}